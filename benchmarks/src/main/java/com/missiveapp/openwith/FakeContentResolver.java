@@ -0,0 +1,92 @@
+package com.missiveapp.openwith;
+
+import java.io.InputStream;
+
+/**
+ * Stands in for the ContentResolver of a share, on a plain JVM.
+ * <p>
+ * Uris are "content://fake/&lt;size&gt;", and open to a stream of that many
+ * deterministic bytes. Reads return at most chunkSize bytes, like a content
+ * provider that serves its data through a pipe.
+ */
+final class FakeContentResolver {
+
+  private static final String PREFIX = "content://fake/";
+
+  private final int chunkSize;
+
+  FakeContentResolver(final int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  static String uriFor(final long size) {
+    return PREFIX + size;
+  }
+
+  /**
+   * Like ContentResolver.openInputStream().
+   */
+  InputStream openInputStream(final String uri) {
+    return new FakeInputStream(sizeOf(uri), chunkSize);
+  }
+
+  /**
+   * Like the OpenableColumns.SIZE column, or AssetFileDescriptor.getLength().
+   */
+  long sizeOf(final String uri) {
+    if (!uri.startsWith(PREFIX)) {
+      throw new IllegalArgumentException(uri);
+    }
+    return Long.parseLong(uri.substring(PREFIX.length()));
+  }
+
+  /**
+   * Deterministic content, without holding it in memory.
+   */
+  static final class FakeInputStream extends InputStream {
+
+    private final long size;
+
+    private final int chunkSize;
+
+    private long position = 0;
+
+    FakeInputStream(final long size, final int chunkSize) {
+      this.size = size;
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public int read() {
+      if (position >= size) {
+        return -1;
+      }
+      return byteAt(position++) & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (position >= size) {
+        return -1;
+      }
+      final int n = (int) Math.min(Math.min(len, chunkSize), size - position);
+      for (int i = 0; i < n; i++) {
+        b[off + i] = byteAt(position + i);
+      }
+      position += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Math.min(chunkSize, size - position), Integer.MAX_VALUE);
+    }
+
+    private static byte byteAt(final long index) {
+      return (byte) (index * 31 + (index >>> 8));
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package com.missiveapp.openwith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Telling a repeated intent apart, as IntentDedup does for each delivery:
+ * building the fingerprint of the share, then looking it up in the DedupIndex.
+ * <p>
+ * Intent is not available on a plain JVM, the values IntentDedup.fingerprint()
+ * reads out of it are given to Fingerprint directly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntentKeyBenchmark {
+
+  /**
+   * Streams in the share
+   */
+  @Param({"1", "5", "50"})
+  public int items;
+
+  /**
+   * Length of the shared text
+   */
+  @Param({"0", "100000"})
+  public int textLength;
+
+  private List<String> streams;
+
+  private String text;
+
+  private String json;
+
+  private DedupIndex index;
+
+  private long now = 0;
+
+  @Setup
+  public void setUp() {
+    streams = new ArrayList<>();
+    for (int i = 0; i < items; i++) {
+      streams.add("content://media/external/images/media/" + (1000 + i));
+    }
+    final StringBuilder builder = new StringBuilder(textLength);
+    for (int i = 0; i < textLength; i++) {
+      builder.append((char) ('a' + i % 26));
+    }
+    text = textLength > 0 ? builder.toString() : null;
+    json = "{\"action\":\"SEND\",\"items\":" + streams + "}";
+    index = new DedupIndex(64, 5000);
+  }
+
+  @Benchmark
+  public String fingerprint() {
+    final Fingerprint key = new Fingerprint("com.missiveapp.openwith.IntentActivity",
+      "android.intent.action.SEND_MULTIPLE", "image/*");
+    key.text("json", json);
+    key.text("text", text);
+    for (String uri : streams) {
+      key.value("stream", uri);
+    }
+    return key.toString();
+  }
+
+  /**
+   * A new share each time, so the index keeps evicting.
+   */
+  @Benchmark
+  public boolean lookupMiss() {
+    now += 10;
+    return index.isDuplicate(fingerprint() + now, now);
+  }
+
+  /**
+   * The same share delivered again within the window.
+   */
+  @Benchmark
+  public boolean lookupHit() {
+    return index.isDuplicate(fingerprint(), 0);
+  }
+}
@@ -0,0 +1,100 @@
+package com.missiveapp.openwith;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the intent sent to javascript for a share of images with
+ * ShareJson, as Serializer.imgToJson() and handleSendMultipleStreams() do,
+ * then turning it into the string that crosses the bridge.
+ * <p>
+ * The image payloads are encoded once in setUp(), only the JSON work is
+ * measured. The path, name and dimensions Serializer reads from Android are
+ * given as is.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class ItemJsonBenchmark {
+
+  /**
+   * Items in the share, a single image or a multiple selection
+   */
+  @Param({"1", "5"})
+  public int items;
+
+  @Param({"1024", "1048576", "16777216"})
+  public long size;
+
+  private String[] uris;
+
+  private String[] payloads;
+
+  private JSONObject built;
+
+  @Setup
+  public void setUp() throws IOException, JSONException {
+    final FakeContentResolver contentResolver = new FakeContentResolver(64 * 1024);
+    uris = new String[items];
+    payloads = new String[items];
+    for (int i = 0; i < items; i++) {
+      // Distinct Uris, same size
+      uris[i] = FakeContentResolver.uriFor(size) + "?item=" + i;
+      try (InputStream in = contentResolver.openInputStream(FakeContentResolver.uriFor(size))) {
+        payloads[i] = Base64Streams.encode(in, size);
+      }
+    }
+    built = build();
+  }
+
+  @Benchmark
+  public JSONObject build() throws JSONException {
+    final JSONArray array = new JSONArray();
+    for (int i = 0; i < items; i++) {
+      array.put(item(i));
+    }
+    return ShareJson.intent("android.intent.action.SEND_MULTIPLE", false, array, null);
+  }
+
+  @Benchmark
+  public String toJsonString() {
+    return built.toString();
+  }
+
+  @Benchmark
+  public String buildAndToString() throws JSONException {
+    return build().toString();
+  }
+
+  private JSONObject item(final int index) throws JSONException {
+    final JSONObject json = new JSONObject();
+    json.put("path", "/storage/emulated/0/DCIM/Camera/IMG_" + index + ".jpg");
+    json.put("name", "IMG_" + index + ".jpg");
+    json.put("width", 4032);
+    json.put("height", 3024);
+    json.put("processed", true);
+    json.put("qrStrings", new JSONArray());
+    ShareJson.describeImage(json, "image/jpeg");
+    ShareJson.attachData(json, uris[index], payloads[index]);
+    return json;
+  }
+}
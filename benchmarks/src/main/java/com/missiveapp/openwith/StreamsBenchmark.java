@@ -0,0 +1,83 @@
+package com.missiveapp.openwith;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading and encoding a shared item, as Serializer.getDataFromURI() and
+ * OpenWithPlugin.load() do, from 1 KB to 200 MB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class StreamsBenchmark {
+
+  @Param({"1024", "65536", "1048576", "16777216", "209715200"})
+  public long size;
+
+  /**
+   * Bytes returned by each read, 64 KB is the capacity of a pipe
+   */
+  @Param({"65536"})
+  public int chunkSize;
+
+  private FakeContentResolver contentResolver;
+
+  private String uri;
+
+  @Setup
+  public void setUp() {
+    contentResolver = new FakeContentResolver(chunkSize);
+    uri = FakeContentResolver.uriFor(size);
+  }
+
+  @Benchmark
+  public byte[] toByteArray() throws IOException {
+    try (InputStream in = contentResolver.openInputStream(uri)) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+
+  @Benchmark
+  public byte[] readUpTo() throws IOException {
+    try (InputStream in = contentResolver.openInputStream(uri)) {
+      return ByteStreams.readUpTo(in, (int) size);
+    }
+  }
+
+  /**
+   * getDataFromURI() when the provider gives an AssetFileDescriptor with a length.
+   */
+  @Benchmark
+  public String encodeKnownSize() throws IOException {
+    try (InputStream in = contentResolver.openInputStream(uri)) {
+      return Base64Streams.encode(in, contentResolver.sizeOf(uri));
+    }
+  }
+
+  /**
+   * getDataFromURI() when only openInputStream() works.
+   */
+  @Benchmark
+  public String encodeUnknownSize() throws IOException {
+    try (InputStream in = contentResolver.openInputStream(uri)) {
+      return Base64Streams.encode(in, -1);
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package com.missiveapp.openwith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The tiles of the QR scan stay within the scan size limit, and cover the image.
+ */
+public class QrTilingTest {
+
+  private static final int MAX_SIZE = 2048;
+
+  @Test
+  public void largePhotoTilesStayWithinMaxSize() {
+    // 48 MP, last whole image scan at 2000 x 1500 (sample size 4 then 2)
+    final QrTiling tiling = QrTiling.plan(8000, 6000, 2, MAX_SIZE);
+    assertNotNull(tiling);
+    assertEquals(1, tiling.sampleSize);
+    assertWithin(8000, 6000, tiling, MAX_SIZE);
+  }
+
+  @Test
+  public void everyPlanStaysWithinMaxSize() {
+    for (int width = 500; width <= 16000; width += 733) {
+      for (int height = 500; height <= 16000; height += 911) {
+        for (int sampleSize = 2; sampleSize <= 16; sampleSize *= 2) {
+          final QrTiling tiling = QrTiling.plan(width, height, sampleSize, MAX_SIZE);
+          if (tiling != null) {
+            assertEquals(sampleSize / 2, tiling.sampleSize);
+            assertWithin(width, height, tiling, MAX_SIZE);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void scanAfterTheSizeLoopAlwaysHasAPlan() {
+    // The whole image scan stops below twice the max size
+    for (int longest = 4100; longest <= 16000; longest += 97) {
+      int sampleSize = 1;
+      while (longest / (sampleSize * 2) >= MAX_SIZE) {
+        sampleSize *= 2;
+      }
+      assertNotNull("longest " + longest, QrTiling.plan(longest, longest * 3 / 4, sampleSize, MAX_SIZE));
+    }
+  }
+
+  @Test
+  public void fullResolutionScanHasNoTiles() {
+    assertNull(QrTiling.plan(1000, 800, 1, MAX_SIZE));
+    assertNull(QrTiling.plan(0, 800, 4, MAX_SIZE));
+  }
+
+  @Test
+  public void tilesCoverTheImageAndOverlap() {
+    final int width = 4031;
+    final int height = 3023;
+    for (int grid = 2; grid <= QrTiling.MAX_GRID; grid++) {
+      final int[][] tiles = QrTiling.tiles(width, height, grid);
+      assertEquals(grid * grid, tiles.length);
+      for (int row = 0; row < grid; row++) {
+        for (int col = 0; col < grid; col++) {
+          final int[] tile = tiles[row * grid + col];
+          if (col == 0) {
+            assertEquals(0, tile[0]);
+          }
+          if (col == grid - 1) {
+            assertEquals(width, tile[2]);
+          } else {
+            assertTrue(tile[2] > tiles[row * grid + col + 1][0]);
+          }
+          if (row == 0) {
+            assertEquals(0, tile[1]);
+          }
+          if (row == grid - 1) {
+            assertEquals(height, tile[3]);
+          } else {
+            assertTrue(tile[3] > tiles[(row + 1) * grid + col][1]);
+          }
+        }
+      }
+    }
+  }
+
+  private static void assertWithin(final int width, final int height, final QrTiling tiling, final int maxSize) {
+    for (int[] tile : QrTiling.tiles(width, height, tiling.grid)) {
+      assertTrue(QrTiling.decodedSize(tile[2] - tile[0], tiling.sampleSize) <= maxSize);
+      assertTrue(QrTiling.decodedSize(tile[3] - tile[1], tiling.sampleSize) <= maxSize);
+    }
+  }
+}
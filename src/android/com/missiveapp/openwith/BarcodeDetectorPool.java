@@ -0,0 +1,119 @@
+package com.missiveapp.openwith;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.vision.barcode.Barcode;
+import com.google.android.gms.vision.barcode.BarcodeDetector;
+
+import java.util.ArrayDeque;
+
+/**
+ * Process wide pool of barcode detectors.
+ * <p>
+ * Building a BarcodeDetector loads its native model, which costs far more than
+ * a detection. Detectors are built on demand, at most one per item worker
+ * (ShareConfig.itemParallelism), and lent to one thread at a time.
+ * Idle detectors are released with releaseAll(), when the plugin is destroyed
+ * or the system is low on memory.
+ */
+final class BarcodeDetectorPool {
+
+  private static final String LOG_TAG = "QR_READ";
+
+  private static final Object lock = new Object();
+
+  /**
+   * Detectors ready to be lent
+   */
+  private static final ArrayDeque<BarcodeDetector> idle = new ArrayDeque<>();
+
+  /**
+   * Number of detectors alive, idle or lent
+   */
+  private static int created = 0;
+
+  private BarcodeDetectorPool() {
+  }
+
+  /**
+   * Borrow a detector, waiting for one to be returned if the pool is full.
+   * <p>
+   * Always give it back with release(), even if it is not operational.
+   */
+  static BarcodeDetector acquire(final Context context) throws InterruptedException {
+    final long start = SystemClock.elapsedRealtime();
+    synchronized (lock) {
+      while (idle.isEmpty() && created >= ShareConfig.itemParallelism) {
+        lock.wait();
+      }
+      final BarcodeDetector detector = idle.poll();
+      if (detector != null) {
+        return detector;
+      }
+      created++;
+    }
+    try {
+      final BarcodeDetector detector = new BarcodeDetector.Builder(context.getApplicationContext())
+        .setBarcodeFormats(Barcode.DATA_MATRIX | Barcode.QR_CODE)
+        .build();
+      Log.d(LOG_TAG, "-detectorCreated-" + (SystemClock.elapsedRealtime() - start) + "ms");
+      return detector;
+    } catch (RuntimeException e) {
+      discard(null);
+      throw e;
+    }
+  }
+
+  /**
+   * Give a detector back to the pool.
+   * <p>
+   * Detectors that are not operational (the native library may still be
+   * downloading) are released, so a later share builds a fresh one.
+   */
+  static void release(final BarcodeDetector detector) {
+    if (detector == null) {
+      return;
+    }
+    if (!detector.isOperational()) {
+      discard(detector);
+      return;
+    }
+    synchronized (lock) {
+      idle.push(detector);
+      lock.notify();
+    }
+  }
+
+  /**
+   * Release the native resources of all idle detectors.
+   * <p>
+   * Lent detectors are not touched, they go back to the pool when returned.
+   */
+  static void releaseAll() {
+    final BarcodeDetector[] detectors;
+    synchronized (lock) {
+      detectors = idle.toArray(new BarcodeDetector[0]);
+      idle.clear();
+      created -= detectors.length;
+      lock.notifyAll();
+    }
+    for (BarcodeDetector detector : detectors) {
+      detector.release();
+    }
+    if (detectors.length > 0) {
+      Log.d(LOG_TAG, "-detectorsReleased-" + detectors.length);
+    }
+  }
+
+  private static void discard(final BarcodeDetector detector) {
+    if (detector != null) {
+      detector.release();
+    }
+    synchronized (lock) {
+      created--;
+      lock.notify();
+    }
+  }
+}
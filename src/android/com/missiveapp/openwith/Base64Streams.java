@@ -0,0 +1,154 @@
+package com.missiveapp.openwith;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Base64 encoding of a stream, without buffering the whole input first.
+ * <p>
+ * The output is the same as android.util.Base64.encodeToString(bytes, DEFAULT):
+ * lines of 76 characters, each one terminated by a newline.
+ * <p>
+ * Strings are built from the encoded bytes as ISO-8859-1, the same characters
+ * as ASCII for base64: ART copies those bytes straight into the String, where
+ * for US-ASCII it decodes them to a char[] first, twice their size.
+ */
+final class Base64Streams {
+
+  private static final byte[] ALPHABET =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+      .getBytes(StandardCharsets.US_ASCII);
+
+  /**
+   * Number of input bytes encoded on one 76 characters line
+   */
+  private static final int LINE_BYTES = 57;
+
+  /**
+   * Input is read by blocks of whole lines
+   */
+  private static final int BLOCK_SIZE = LINE_BYTES * 144;
+
+  private Base64Streams() {
+  }
+
+  /**
+   * Number of characters needed to encode length bytes.
+   */
+  static long encodedLength(final long length) {
+    if (length <= 0) {
+      return 0;
+    }
+    final long chars = (length + 2) / 3 * 4;
+    return chars + (length + LINE_BYTES - 1) / LINE_BYTES;
+  }
+
+  /**
+   * Reads the input stream in fixed blocks and encodes it. Does not close the stream.
+   * <p>
+   * When the size of the input is known, the output buffer is allocated at its
+   * final size once and never grown, and is dropped as soon as the String is
+   * built: the encoded bytes and the String are the only copies, each about
+   * 1.37 times the input, never the input itself.
+   *
+   * @param in   the input stream to read from
+   * @param size the size of the input in bytes, or -1 if unknown
+   * @return the base64 representation of the stream content
+   * @throws IOException if an I/O error occurs
+   */
+  static String encode(
+    final InputStream in, // NOPMD
+    final long size)
+    throws IOException {
+    ByteStreams.checkNotNull(in);
+    final long expected = size >= 0 ? encodedLength(size) : encodedLength(BLOCK_SIZE);
+    byte[] out = new byte[(int) Math.min(expected, Integer.MAX_VALUE - 8)];
+    final byte[] block = new byte[BLOCK_SIZE];
+    int pos = 0;
+    while (true) {
+      final int r = readBlock(in, block);
+      if (r == 0) {
+        break;
+      }
+      final int needed = pos + (int) encodedLength(r);
+      if (needed > out.length) {
+        out = Arrays.copyOf(out, Math.max(needed, out.length + (out.length >> 1)));
+      }
+      pos = encodeBlock(block, 0, r, out, pos);
+      if (r < BLOCK_SIZE) {
+        break;
+      }
+    }
+    return new String(out, 0, pos, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Encodes a range of a byte array.
+   */
+  static String encode(final byte[] bytes, final int offset, final int length) {
+    ByteStreams.checkPositionIndex(offset + length, bytes.length);
+    final byte[] out = new byte[(int) encodedLength(length)];
+    final int pos = encodeBlock(bytes, offset, length, out, 0);
+    return new String(out, 0, pos, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Fills the block from the stream, returns less than its size only at end of stream.
+   */
+  private static int readBlock(final InputStream in, final byte[] block) throws IOException {
+    int total = 0;
+    while (total < block.length) {
+      final int r = in.read(block, total, block.length - total);
+      if (r == -1) {
+        break;
+      }
+      total += r;
+    }
+    return total;
+  }
+
+  /**
+   * Encodes length bytes starting at offset, which must be a multiple of
+   * LINE_BYTES unless it is the last block, and returns the new output position.
+   */
+  private static int encodeBlock(
+    final byte[] in,
+    final int offset,
+    final int length,
+    final byte[] out,
+    final int start) {
+    int pos = start;
+    int i = offset;
+    final int end = offset + length;
+    while (i < end) {
+      final int lineEnd = Math.min(end, i + LINE_BYTES);
+      while (lineEnd - i >= 3) {
+        final int v = (in[i] & 0xff) << 16 | (in[i + 1] & 0xff) << 8 | in[i + 2] & 0xff;
+        out[pos++] = ALPHABET[v >>> 18];
+        out[pos++] = ALPHABET[v >>> 12 & 0x3f];
+        out[pos++] = ALPHABET[v >>> 6 & 0x3f];
+        out[pos++] = ALPHABET[v & 0x3f];
+        i += 3;
+      }
+      if (lineEnd - i == 2) {
+        final int v = (in[i] & 0xff) << 16 | (in[i + 1] & 0xff) << 8;
+        out[pos++] = ALPHABET[v >>> 18];
+        out[pos++] = ALPHABET[v >>> 12 & 0x3f];
+        out[pos++] = ALPHABET[v >>> 6 & 0x3f];
+        out[pos++] = '=';
+        i += 2;
+      } else if (lineEnd - i == 1) {
+        final int v = (in[i] & 0xff) << 16;
+        out[pos++] = ALPHABET[v >>> 18];
+        out[pos++] = ALPHABET[v >>> 12 & 0x3f];
+        out[pos++] = '=';
+        out[pos++] = '=';
+        i += 1;
+      }
+      out[pos++] = '\n';
+    }
+    return pos;
+  }
+}
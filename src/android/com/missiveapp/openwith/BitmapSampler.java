@@ -0,0 +1,139 @@
+package com.missiveapp.openwith;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decode images at a reduced resolution.
+ * <p>
+ * The bounds of the image are read first, then it is decoded with the largest
+ * power of two inSampleSize that keeps its longest side above the target,
+ * in RGB_565 (half the memory of ARGB_8888, enough for barcodes and previews).
+ */
+final class BitmapSampler {
+
+  /**
+   * Opens a fresh stream on the image each time it is called
+   */
+  interface StreamOpener {
+    InputStream open() throws IOException;
+  }
+
+  /**
+   * Receives the regions decoded by decodeRegions(), and recycles them
+   */
+  interface RegionConsumer<E extends Exception> {
+    void accept(Bitmap bitmap) throws E;
+  }
+
+  private BitmapSampler() {
+  }
+
+  /**
+   * Read the dimensions and mime type of an image without decoding it.
+   *
+   * @return options with outWidth / outHeight set, or -1 if the image could not be read
+   */
+  static BitmapFactory.Options readBounds(final StreamOpener opener) throws IOException {
+    final BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    try (InputStream in = opener.open()) {
+      if (in != null) {
+        BitmapFactory.decodeStream(in, null, options);
+      }
+    }
+    return options;
+  }
+
+  /**
+   * Largest power of two keeping the longest side at or above target.
+   */
+  static int computeSampleSize(final int width, final int height, final int target) {
+    final int longest = Math.max(width, height);
+    int sampleSize = 1;
+    while (target > 0 && longest / (sampleSize * 2) >= target) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  /**
+   * Decode the whole image at the given sample size.
+   */
+  static Bitmap decode(final StreamOpener opener, final int sampleSize) throws IOException {
+    try (InputStream in = opener.open()) {
+      if (in == null) {
+        return null;
+      }
+      return BitmapFactory.decodeStream(in, null, decodeOptions(sampleSize));
+    }
+  }
+
+  /**
+   * Decode the given regions of the image at the given sample size, one at a
+   * time: each region is handed to the consumer before the next is decoded,
+   * so only one is held in memory.
+   * <p>
+   * The stream is opened once for all regions. Regions that cannot be decoded
+   * are skipped.
+   */
+  static <E extends Exception> void decodeRegions(
+    final StreamOpener opener,
+    final Rect[] regions,
+    final int sampleSize,
+    final RegionConsumer<E> consumer)
+    throws IOException, E {
+    try (InputStream in = opener.open()) {
+      if (in == null) {
+        return;
+      }
+      final BitmapRegionDecoder decoder = newRegionDecoder(in);
+      try {
+        for (Rect region : regions) {
+          final Bitmap bitmap = decoder.decodeRegion(region, decodeOptions(sampleSize));
+          if (bitmap != null) {
+            consumer.accept(bitmap);
+          }
+        }
+      } finally {
+        decoder.recycle();
+      }
+    }
+  }
+
+  /**
+   * The tiles of a grid as Rects, see QrTiling.tiles().
+   */
+  static Rect[] tiles(final int width, final int height, final int grid) {
+    final int[][] tiles = QrTiling.tiles(width, height, grid);
+    final Rect[] rects = new Rect[tiles.length];
+    for (int i = 0; i < tiles.length; i++) {
+      rects[i] = new Rect(tiles[i][0], tiles[i][1], tiles[i][2], tiles[i][3]);
+    }
+    return rects;
+  }
+
+  /**
+   * The isShareable flag is ignored, and the two argument factory deprecated, since API 31.
+   */
+  @SuppressWarnings("deprecation")
+  private static BitmapRegionDecoder newRegionDecoder(final InputStream in) throws IOException {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+      return BitmapRegionDecoder.newInstance(in);
+    }
+    return BitmapRegionDecoder.newInstance(in, false);
+  }
+
+  private static BitmapFactory.Options decodeOptions(final int sampleSize) {
+    final BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inSampleSize = sampleSize;
+    options.inPreferredConfig = Bitmap.Config.RGB_565;
+    return options;
+  }
+}
@@ -4,6 +4,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 /**
  * Convert an InputStream to a byte array.
@@ -98,4 +99,143 @@ public final class ByteStreams {
     copy(in, out);
     return out.toByteArray();
   }
+
+  /**
+   * Discards exactly n bytes from the input stream. Does not close the stream.
+   * <p>
+   * InputStream.skip() is allowed to skip less than requested (and some
+   * content providers return 0 forever), so this falls back to reading.
+   *
+   * @param in the input stream to skip
+   * @param n  the number of bytes to skip
+   * @return the number of bytes actually skipped, less than n only at end of stream
+   * @throws IOException if an I/O error occurs
+   */
+  public static long skipFully(
+    final InputStream in, // NOPMD
+    final long n)
+    throws IOException {
+    checkNotNull(in);
+    checkArgument(n >= 0);
+    long remaining = n;
+    byte[] buf = null;
+    while (remaining > 0) {
+      final long skipped = in.skip(remaining);
+      if (skipped > 0) {
+        remaining -= skipped;
+        continue;
+      }
+      if (buf == null) {
+        buf = createBuffer();
+      }
+      final int r = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+      if (r == -1) {
+        break;
+      }
+      remaining -= r;
+    }
+    return n - remaining;
+  }
+
+  /**
+   * Reads up to length bytes into a new array. Does not close the stream.
+   * <p>
+   * The returned array is only shorter than length when the end of the
+   * stream has been reached, so memory use is bounded by length.
+   *
+   * @param in     the input stream to read from
+   * @param length the maximum number of bytes to read
+   * @return a byte array containing the bytes read
+   * @throws IOException if an I/O error occurs
+   */
+  public static byte[] readUpTo(
+    final InputStream in, // NOPMD
+    final int length)
+    throws IOException {
+    checkNotNull(in);
+    checkArgument(length >= 0);
+    final byte[] bytes = new byte[length];
+    int total = 0;
+    while (total < length) {
+      final int r = in.read(bytes, total, length - total);
+      if (r == -1) {
+        break;
+      }
+      total += r;
+    }
+    return total == length ? bytes : Arrays.copyOf(bytes, total);
+  }
+
+  /**
+   * A growable byte array kept between reads, for content that is read once
+   * and then consumed several times (encoded and decoded, for instance).
+   * <p>
+   * Not thread safe, keep one per thread.
+   */
+  static final class ReusableBuffer {
+
+    /**
+     * Arrays larger than this are dropped by release() instead of being kept
+     */
+    private final int maxRetained;
+
+    private byte[] bytes = new byte[0];
+
+    private int length;
+
+    ReusableBuffer(final int maxRetained) {
+      this.maxRetained = maxRetained;
+    }
+
+    /**
+     * Replaces the buffer content with all bytes from the input stream.
+     * Does not close the stream.
+     *
+     * @param in       the input stream to read from
+     * @param sizeHint the expected number of bytes, or -1 if unknown
+     * @throws IOException if an I/O error occurs
+     */
+    void readFrom(
+      final InputStream in, // NOPMD
+      final long sizeHint)
+      throws IOException {
+      checkNotNull(in);
+      if (sizeHint >= 0 && sizeHint < Integer.MAX_VALUE - 8 && bytes.length < sizeHint + 1) {
+        // One extra byte, so that end of stream is seen without growing
+        bytes = new byte[(int) sizeHint + 1];
+      }
+      length = 0;
+      while (true) {
+        if (length == bytes.length) {
+          bytes = Arrays.copyOf(bytes, Math.max(8192, bytes.length * 2));
+        }
+        final int r = in.read(bytes, length, bytes.length - length);
+        if (r == -1) {
+          break;
+        }
+        length += r;
+      }
+    }
+
+    /**
+     * The backing array, only the first length() bytes are valid.
+     */
+    byte[] bytes() {
+      return bytes;
+    }
+
+    int length() {
+      return length;
+    }
+
+    /**
+     * Marks the content as consumed, dropping the array if it grew too large to keep.
+     */
+    void release() {
+      length = 0;
+      if (bytes.length > maxRetained) {
+        bytes = new byte[0];
+      }
+    }
+  }
 }
@@ -0,0 +1,98 @@
+package com.missiveapp.openwith;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Streams left open between two loadChunk() calls on the same content.
+ * <p>
+ * Reading a large file slice by slice would otherwise open the content for
+ * each slice and skip to its offset, which means reading everything before
+ * it again when the provider serves a pipe rather than a file descriptor.
+ * A stream is kept after a full slice, positioned for the next one, and
+ * taken back by the read that starts there. At most MAX_OPEN streams are
+ * kept, the least recently used are closed.
+ */
+final class ChunkStreams {
+
+  private static final int MAX_OPEN = 4;
+
+  private static final class Open {
+    final InputStream in;
+    final long position;
+
+    Open(final InputStream in, final long position) {
+      this.in = in;
+      this.position = position;
+    }
+  }
+
+  private static final LinkedHashMap<String, Open> streams = new LinkedHashMap<>();
+
+  private ChunkStreams() {
+  }
+
+  /**
+   * Take the stream kept for a Uri if it is at the given position, null otherwise.
+   */
+  static InputStream take(final String uri, final long position) {
+    final Open open;
+    synchronized (ChunkStreams.class) {
+      open = streams.remove(uri);
+    }
+    if (open == null) {
+      return null;
+    }
+    if (open.position != position) {
+      closeQuietly(open.in);
+      return null;
+    }
+    return open.in;
+  }
+
+  /**
+   * Keep a stream for the read of the next slice of a Uri.
+   */
+  static void keep(final String uri, final InputStream in, final long position) {
+    Open replaced;
+    Open evicted = null;
+    synchronized (ChunkStreams.class) {
+      replaced = streams.put(uri, new Open(in, position));
+      if (streams.size() > MAX_OPEN) {
+        final Iterator<Map.Entry<String, Open>> oldest = streams.entrySet().iterator();
+        evicted = oldest.next().getValue();
+        oldest.remove();
+      }
+    }
+    if (replaced != null) {
+      closeQuietly(replaced.in);
+    }
+    if (evicted != null) {
+      closeQuietly(evicted.in);
+    }
+  }
+
+  /**
+   * Close the stream kept for a Uri, if any.
+   */
+  static void close(final String uri) {
+    final Open open;
+    synchronized (ChunkStreams.class) {
+      open = streams.remove(uri);
+    }
+    if (open != null) {
+      closeQuietly(open.in);
+    }
+  }
+
+  private static void closeQuietly(final InputStream in) {
+    try {
+      in.close();
+    } catch (IOException e) {
+      // Nothing more to do
+    }
+  }
+}
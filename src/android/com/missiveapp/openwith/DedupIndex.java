@@ -0,0 +1,86 @@
+package com.missiveapp.openwith;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers recently seen fingerprints, to drop duplicate deliveries of the same intent.
+ * <p>
+ * A fingerprint seen again less than window milliseconds after it was first
+ * recorded is a duplicate. At most capacity fingerprints are kept, the
+ * oldest are forgotten first.
+ */
+final class DedupIndex {
+
+  private final int capacity;
+
+  private final long window;
+
+  /**
+   * Time each fingerprint was recorded at, oldest first
+   */
+  private final LinkedHashMap<String, Long> seen = new LinkedHashMap<>();
+
+  private long hits = 0;
+
+  private long misses = 0;
+
+  DedupIndex(final int capacity, final long window) {
+    this.capacity = Math.max(1, capacity);
+    this.window = window;
+  }
+
+  /**
+   * Whether a fingerprint was seen within the window, it is recorded if it was not.
+   *
+   * @param fingerprint identifies the intent
+   * @param now         the current time, in milliseconds
+   */
+  synchronized boolean isDuplicate(final String fingerprint, final long now) {
+    purge(now);
+    final Long recordedAt = seen.get(fingerprint);
+    if (recordedAt != null) {
+      hits++;
+      return true;
+    }
+    misses++;
+    seen.put(fingerprint, now);
+    if (seen.size() > capacity) {
+      final Iterator<String> oldest = seen.keySet().iterator();
+      oldest.next();
+      oldest.remove();
+    }
+    return false;
+  }
+
+  synchronized long hits() {
+    return hits;
+  }
+
+  synchronized long misses() {
+    return misses;
+  }
+
+  synchronized int size() {
+    return seen.size();
+  }
+
+  /**
+   * Reset the hit and miss counts, the recorded fingerprints are kept.
+   */
+  synchronized void resetCounts() {
+    hits = 0;
+    misses = 0;
+  }
+
+  private void purge(final long now) {
+    final Iterator<Map.Entry<String, Long>> iterator = seen.entrySet().iterator();
+    while (iterator.hasNext()) {
+      if (now - iterator.next().getValue() < window) {
+        break;
+      }
+      iterator.remove();
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package com.missiveapp.openwith;
+
+/**
+ * The fingerprint IntentDedup tells intents apart by, built from the values
+ * it reads out of an intent. Large texts are reduced to their length and hash.
+ */
+final class Fingerprint {
+
+  private final StringBuilder key = new StringBuilder();
+
+  /**
+   * @param target class name of the component the intent is for, may be null
+   */
+  Fingerprint(final String target, final String action, final String type) {
+    if (target != null) {
+      key.append(target);
+    }
+    key.append('|').append(action).append('|').append(type);
+  }
+
+  /**
+   * Add a value as is, nothing if it is null.
+   */
+  Fingerprint value(final String name, final Object value) {
+    if (value != null) {
+      key.append('|').append(name).append(':').append(value);
+    }
+    return this;
+  }
+
+  /**
+   * Add the length and hash of a text, nothing if it is null.
+   * <p>
+   * The hash of a String is cached, a text read again is not scanned again.
+   */
+  Fingerprint text(final String name, final String text) {
+    if (text != null) {
+      key.append('|').append(name).append(':').append(text.length()).append(':').append(text.hashCode());
+    }
+    return this;
+  }
+
+  @Override
+  public String toString() {
+    return key.toString();
+  }
+}
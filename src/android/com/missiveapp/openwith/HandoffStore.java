@@ -0,0 +1,136 @@
+package com.missiveapp.openwith;
+
+import android.content.Context;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Hands processed shares over from IntentActivity to the main activity.
+ * <p>
+ * Small payloads still travel in the "json" extra. Larger ones (base64 images)
+ * are written to a file in the cache directory and only the file name goes
+ * through the Intent, so they never hit the Binder transaction limit.
+ */
+final class HandoffStore {
+
+  /**
+   * Name of the Intent extra holding the handoff file name
+   */
+  static final String EXTRA_HANDOFF = "jsonFile";
+
+  /**
+   * Payloads up to this many characters are passed inline in the "json" extra
+   */
+  static final int INLINE_LIMIT = 64 * 1024;
+
+  /**
+   * Sub directory of the cache directory holding the handoff files
+   */
+  private static final String DIRECTORY = "openwith-handoff";
+
+  /**
+   * Handoff files that were never consumed are evicted after this delay
+   */
+  private static final long MAX_AGE = 60 * 60 * 1000L;
+
+  /**
+   * At most this many unconsumed handoff files are kept, oldest are evicted first
+   */
+  private static final int MAX_FILES = 16;
+
+  private static final AtomicInteger counter = new AtomicInteger();
+
+  private HandoffStore() {
+  }
+
+  /**
+   * Write a processed share to a new handoff file.
+   *
+   * @return the token to pass in the EXTRA_HANDOFF extra
+   */
+  static String write(final Context context, final String json) throws IOException {
+    final long start = PipelineStats.start();
+    final File dir = getDirectory(context);
+    evict(dir);
+    final String token = "share-" + System.currentTimeMillis()
+      + "-" + counter.incrementAndGet() + ".json";
+    final File tmp = new File(dir, token + ".tmp");
+    try (Writer writer = new BufferedWriter(
+      new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+      writer.write(json);
+    }
+    if (!tmp.renameTo(new File(dir, token))) {
+      tmp.delete();
+      throw new IOException("Cannot rename handoff file " + tmp);
+    }
+    PipelineStats.record(PipelineStats.Stage.HANDOFF, start, json.length());
+    return token;
+  }
+
+  /**
+   * Read a processed share back from its handoff file.
+   * <p>
+   * The file is consumed: it is deleted once read, so a duplicate delivery of
+   * the same Intent fails with an IOException instead of being processed twice.
+   */
+  static JSONObject read(final Context context, final String token)
+    throws IOException, JSONException {
+    if (token.indexOf('/') >= 0 || token.startsWith(".")) {
+      throw new IOException("Invalid handoff token " + token);
+    }
+    final long start = PipelineStats.start();
+    final File file = new File(getDirectory(context), token);
+    final byte[] bytes;
+    try (InputStream in = new FileInputStream(file)) {
+      bytes = ByteStreams.toByteArray(in);
+    } finally {
+      file.delete();
+    }
+    final JSONObject json = new JSONObject(new String(bytes, StandardCharsets.UTF_8));
+    PipelineStats.record(PipelineStats.Stage.HANDOFF, start, bytes.length);
+    return json;
+  }
+
+  /**
+   * Remove stale handoff files and keep at most MAX_FILES of them.
+   */
+  private static void evict(final File dir) {
+    final File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(final File a, final File b) {
+        return Long.compare(b.lastModified(), a.lastModified());
+      }
+    });
+    final long now = System.currentTimeMillis();
+    for (int i = 0; i < files.length; i++) {
+      if (i >= MAX_FILES || now - files[i].lastModified() > MAX_AGE) {
+        files[i].delete();
+      }
+    }
+  }
+
+  private static File getDirectory(final Context context) throws IOException {
+    final File dir = new File(context.getCacheDir(), DIRECTORY);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    return dir;
+  }
+}
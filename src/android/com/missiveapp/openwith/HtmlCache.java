@@ -0,0 +1,251 @@
+package com.missiveapp.openwith;
+
+import android.util.LruCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Two tier cache of fetched page content, keyed by normalized URL.
+ * <p>
+ * Entries are kept in memory in an LRU bounded by size, and on disk in the
+ * cache directory, where the least recently used files are evicted once the
+ * directory grows past its budget. Entries keep the ETag and Last-Modified
+ * validators of the response so that stale entries can be revalidated with a
+ * conditional GET.
+ */
+final class HtmlCache {
+
+  private static final int FORMAT_VERSION = 2;
+
+  /**
+   * A cached page.
+   */
+  static final class Entry {
+    final String key;
+    final String content;
+    final String etag;
+    final String lastModified;
+    final long fetchedAt;
+
+    Entry(final String key, final String content, final String etag,
+          final String lastModified, final long fetchedAt) {
+      this.key = key;
+      this.content = content;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.fetchedAt = fetchedAt;
+    }
+
+    /**
+     * Whether the entry can be served without revalidation.
+     */
+    boolean isFresh(final long now) {
+      return now - fetchedAt < ShareConfig.htmlCacheFreshness;
+    }
+
+    /**
+     * A copy of this entry, revalidated at the given time.
+     */
+    Entry revalidated(final long now) {
+      return new Entry(key, content, etag, lastModified, now);
+    }
+
+    private int weight() {
+      return 64 + 2 * (key.length() + content.length());
+    }
+  }
+
+  private final File directory;
+
+  private final LruCache<String, Entry> memory;
+
+  /**
+   * @param cacheDir the application cache directory, the cache uses a sub directory of it
+   */
+  HtmlCache(final File cacheDir) {
+    this.directory = new File(cacheDir, "openwith-html");
+    this.memory = new LruCache<String, Entry>(ShareConfig.htmlCacheMemoryBytes) {
+      @Override
+      protected int sizeOf(final String key, final Entry entry) {
+        return entry.weight();
+      }
+    };
+  }
+
+  /**
+   * Normalize a URL so that trivially different forms share an entry:
+   * lower case scheme and host, no default port, no fragment and no
+   * utm_* tracking parameters.
+   */
+  static String normalize(final String url) {
+    try {
+      final URI uri = new URI(url.trim());
+      final String scheme = uri.getScheme() == null ? null : uri.getScheme().toLowerCase(Locale.ROOT);
+      final String host = uri.getHost() == null ? null : uri.getHost().toLowerCase(Locale.ROOT);
+      int port = uri.getPort();
+      if (("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443)) {
+        port = -1;
+      }
+      final String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+      final StringBuilder key = new StringBuilder();
+      key.append(scheme).append("://").append(host);
+      if (port != -1) {
+        key.append(':').append(port);
+      }
+      key.append(path);
+      final String query = uri.getRawQuery();
+      if (query != null) {
+        char separator = '?';
+        for (String parameter : query.split("&")) {
+          if (parameter.isEmpty() || parameter.startsWith("utm_")) {
+            continue;
+          }
+          key.append(separator).append(parameter);
+          separator = '&';
+        }
+      }
+      return key.toString();
+    } catch (URISyntaxException | RuntimeException e) {
+      return url;
+    }
+  }
+
+  /**
+   * Return the entry for a normalized URL, from memory or disk. Defaults to null.
+   */
+  Entry get(final String key) {
+    final Entry cached = memory.get(key);
+    if (cached != null) {
+      return cached;
+    }
+    final Entry stored = read(key);
+    if (stored != null) {
+      memory.put(key, stored);
+    }
+    return stored;
+  }
+
+  /**
+   * Store an entry in memory and on disk.
+   */
+  void put(final Entry entry) {
+    memory.put(entry.key, entry);
+    write(entry);
+  }
+
+  /**
+   * Drop the in-memory tier, the disk tier is left to the system.
+   */
+  void trimMemory() {
+    memory.evictAll();
+  }
+
+  private synchronized Entry read(final String key) {
+    final File file = new File(directory, fileName(key));
+    if (!file.isFile()) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != FORMAT_VERSION || !key.equals(in.readUTF())) {
+        return null;
+      }
+      final String etag = in.readUTF();
+      final String lastModified = in.readUTF();
+      final long fetchedAt = in.readLong();
+      final byte[] content = new byte[in.readInt()];
+      in.readFully(content);
+      file.setLastModified(System.currentTimeMillis());
+      return new Entry(key, new String(content, StandardCharsets.UTF_8),
+        etag.isEmpty() ? null : etag, lastModified.isEmpty() ? null : lastModified, fetchedAt);
+    } catch (IOException | RuntimeException e) {
+      file.delete();
+      return null;
+    }
+  }
+
+  private synchronized void write(final Entry entry) {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      return;
+    }
+    final File file = new File(directory, fileName(entry.key));
+    final File tmp = new File(directory, file.getName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      final byte[] content = entry.content.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(FORMAT_VERSION);
+      out.writeUTF(entry.key);
+      out.writeUTF(entry.etag == null ? "" : entry.etag);
+      out.writeUTF(entry.lastModified == null ? "" : entry.lastModified);
+      out.writeLong(entry.fetchedAt);
+      out.writeInt(content.length);
+      out.write(content);
+    } catch (IOException | RuntimeException e) {
+      tmp.delete();
+      return;
+    }
+    if (!tmp.renameTo(file)) {
+      tmp.delete();
+      return;
+    }
+    evict();
+  }
+
+  /**
+   * Delete the least recently used files until the directory fits its budget.
+   */
+  private void evict() {
+    final File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    long total = 0;
+    for (File file : files) {
+      total += file.length();
+    }
+    if (total <= ShareConfig.htmlCacheDiskBytes) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(final File a, final File b) {
+        return Long.compare(a.lastModified(), b.lastModified());
+      }
+    });
+    for (File file : files) {
+      if (total <= ShareConfig.htmlCacheDiskBytes) {
+        break;
+      }
+      total -= file.length();
+      file.delete();
+    }
+  }
+
+  private static String fileName(final String key) {
+    try {
+      final byte[] digest = MessageDigest.getInstance("SHA-1")
+        .digest(key.getBytes(StandardCharsets.UTF_8));
+      final StringBuilder name = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return name.toString();
+    } catch (NoSuchAlgorithmException e) {
+      return Integer.toHexString(key.hashCode());
+    }
+  }
+}
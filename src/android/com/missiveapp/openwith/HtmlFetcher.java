@@ -0,0 +1,223 @@
+package com.missiveapp.openwith;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches the HTML content of shared URLs for the plugin.
+ * <p>
+ * Only the head of the page (and optionally an excerpt of the body) is
+ * downloaded, see HtmlMetaExtractor.
+ * <p>
+ * Fetches run on a small bounded pool, with connect and read timeouts, and an
+ * overall deadline after which the callback is called with null so the share
+ * is delivered without its content. Pending fetches are cancelled with
+ * cancelAll(), without calling their callback.
+ */
+final class HtmlFetcher {
+
+  /**
+   * Fetches waiting for a thread, more are rejected (and delivered without content)
+   */
+  private static final int QUEUE_SIZE = 16;
+
+  private final ThreadPoolExecutor executor;
+
+  private final ScheduledExecutorService deadlines;
+
+  private final Set<Fetch> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<Fetch, Boolean>());
+
+  private final HtmlCache cache;
+
+  /**
+   * @param cache where fetched pages are kept, or null to always fetch
+   */
+  HtmlFetcher(final HtmlCache cache) {
+    this.cache = cache;
+    final int poolSize = ShareConfig.fetchPoolSize;
+    executor = new ThreadPoolExecutor(
+      poolSize, poolSize, 30, TimeUnit.SECONDS,
+      new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+      threadFactory("openwith-fetch-"));
+    executor.allowCoreThreadTimeOut(true);
+    final ScheduledThreadPoolExecutor scheduler =
+      new ScheduledThreadPoolExecutor(1, threadFactory("openwith-fetch-deadline-"));
+    scheduler.setRemoveOnCancelPolicy(true);
+    deadlines = scheduler;
+  }
+
+  /**
+   * Fetch the content at url and call back with it, or with null on error or timeout.
+   * <p>
+   * The callback is called exactly once, from a background thread, unless the
+   * fetch is cancelled.
+   */
+  void fetch(final String url, final OpenWithPlugin.PopulateHtmlText callback) {
+    final Fetch fetch = new Fetch(url, callback);
+    inFlight.add(fetch);
+    try {
+      fetch.future = executor.submit(fetch);
+      fetch.deadline = deadlines.schedule(
+        fetch::expire, ShareConfig.fetchTotalTimeout, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      fetch.finish(null);
+    }
+  }
+
+  /**
+   * Cancel all pending fetches, their callbacks are not called.
+   */
+  void cancelAll() {
+    for (Fetch fetch : inFlight.toArray(new Fetch[0])) {
+      fetch.cancel();
+    }
+  }
+
+  /**
+   * Drop the in-memory cached pages.
+   */
+  void trimMemory() {
+    if (cache != null) {
+      cache.trimMemory();
+    }
+  }
+
+  /**
+   * Cancel all pending fetches and stop the threads, the fetcher cannot be used anymore.
+   */
+  void shutdown() {
+    cancelAll();
+    executor.shutdownNow();
+    deadlines.shutdownNow();
+  }
+
+  private static ThreadFactory threadFactory(final String prefix) {
+    final AtomicInteger threadCount = new AtomicInteger();
+    return (Runnable runnable) -> {
+      final Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * One URL being fetched. Whichever of completion, deadline or cancellation
+   * comes first wins, the others do nothing.
+   */
+  private final class Fetch implements Runnable {
+    private final String url;
+    private final OpenWithPlugin.PopulateHtmlText callback;
+    private final AtomicBoolean done = new AtomicBoolean(false);
+    private volatile HttpURLConnection connection;
+    private volatile Future<?> future;
+    private volatile ScheduledFuture<?> deadline;
+
+    Fetch(final String url, final OpenWithPlugin.PopulateHtmlText callback) {
+      this.url = url;
+      this.callback = callback;
+    }
+
+    /**
+     * Serve the page from the cache while it is fresh, otherwise fetch it,
+     * revalidating the cached copy with a conditional GET when there is one.
+     */
+    @Override
+    public void run() {
+      String htmlText = null;
+      try {
+        final String key = HtmlCache.normalize(url);
+        final HtmlCache.Entry cached = cache != null ? cache.get(key) : null;
+        if (cached != null && cached.isFresh(System.currentTimeMillis())) {
+          htmlText = cached.content;
+          return;
+        }
+        connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(ShareConfig.fetchConnectTimeout);
+        connection.setReadTimeout(ShareConfig.fetchReadTimeout);
+        if (cached != null && cached.etag != null) {
+          connection.setRequestProperty("If-None-Match", cached.etag);
+        }
+        if (cached != null && cached.lastModified != null) {
+          connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+        }
+        if (cached != null && connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+          htmlText = cached.content;
+          cache.put(cached.revalidated(System.currentTimeMillis()));
+          return;
+        }
+        try (InputStream in = connection.getInputStream()) {
+          htmlText = HtmlMetaExtractor.read(in, connection.getContentType(),
+            ShareConfig.htmlMaxBytes, ShareConfig.htmlExcerptBytes);
+        }
+        if (cache != null && !done.get() && connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+          cache.put(new HtmlCache.Entry(key, htmlText,
+            connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"),
+            System.currentTimeMillis()));
+        }
+      } catch (IOException | RuntimeException e) {
+        htmlText = null;
+      } finally {
+        disconnect();
+        finish(htmlText);
+      }
+    }
+
+    void expire() {
+      if (done.compareAndSet(false, true)) {
+        inFlight.remove(this);
+        abort();
+        callback.start(null);
+      }
+    }
+
+    void cancel() {
+      if (done.compareAndSet(false, true)) {
+        inFlight.remove(this);
+        abort();
+        if (deadline != null) {
+          deadline.cancel(false);
+        }
+      }
+    }
+
+    void finish(final String content) {
+      if (done.compareAndSet(false, true)) {
+        inFlight.remove(this);
+        if (deadline != null) {
+          deadline.cancel(false);
+        }
+        callback.start(content);
+      }
+    }
+
+    private void abort() {
+      if (future != null) {
+        future.cancel(true);
+      }
+      disconnect();
+    }
+
+    private void disconnect() {
+      final HttpURLConnection urlConnection = connection;
+      if (urlConnection != null) {
+        urlConnection.disconnect();
+      }
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package com.missiveapp.openwith;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reads the head of an HTML page and extracts its metadata.
+ * <p>
+ * The page is read incrementally and reading stops after &lt;/head&gt; (plus an
+ * optional excerpt of the body) or once the byte budget is spent, so only a
+ * bounded part of the page is ever downloaded and decoded.
+ */
+final class HtmlMetaExtractor {
+
+  private static final Pattern CHARSET =
+    Pattern.compile("charset\\s*=\\s*[\"']?([A-Za-z0-9_.:-]+)", Pattern.CASE_INSENSITIVE);
+
+  private static final Pattern META_CHARSET =
+    Pattern.compile("<meta\\s[^>]*charset\\s*=\\s*[\"']?([A-Za-z0-9_.:-]+)", Pattern.CASE_INSENSITIVE);
+
+  private static final Pattern TITLE =
+    Pattern.compile("<title[^>]*>(.*?)</title", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+  private static final Pattern TAG =
+    Pattern.compile("<(meta|link)\\s([^>]*)>", Pattern.CASE_INSENSITIVE);
+
+  private static final Pattern ATTRIBUTE =
+    Pattern.compile("([A-Za-z_:.-]+)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s\"'>]+))");
+
+  private static final Pattern ENTITY = Pattern.compile("&(#x[0-9a-fA-F]+|#[0-9]+|[a-zA-Z]+);");
+
+  private HtmlMetaExtractor() {
+  }
+
+  /**
+   * Read the head of a page, and at most excerptBytes of its body. Does not close the stream.
+   *
+   * @param in           the response body
+   * @param contentType  the Content-Type response header, or null
+   * @param maxBytes     never read more than this many bytes
+   * @param excerptBytes how many bytes to keep after the end of the head
+   * @return the text read, decoded with the charset of the headers or meta tags
+   * @throws IOException if an I/O error occurs
+   */
+  static String read(
+    final InputStream in, // NOPMD
+    final String contentType,
+    final int maxBytes,
+    final int excerptBytes)
+    throws IOException {
+    byte[] bytes = new byte[Math.min(maxBytes, 16 * 1024)];
+    int size = 0;
+    int limit = maxBytes;
+    boolean headFound = false;
+    while (size < limit) {
+      if (size == bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.min(maxBytes, bytes.length * 2));
+      }
+      final int r = in.read(bytes, size, Math.min(bytes.length, limit) - size);
+      if (r == -1) {
+        break;
+      }
+      final int from = Math.max(0, size - 16);
+      size += r;
+      if (!headFound) {
+        // The markup is ASCII in every charset pages use, so search the raw bytes
+        final int end = indexOfHeadEnd(new String(bytes, from, size - from, StandardCharsets.ISO_8859_1), 0);
+        if (end >= 0) {
+          headFound = true;
+          limit = (int) Math.min((long) maxBytes, (long) from + end + excerptBytes);
+        }
+      }
+    }
+    final int length = Math.min(size, limit);
+    return new String(bytes, 0, length, charsetOf(contentType, bytes, length));
+  }
+
+  /**
+   * Extract the title, description, canonical link and the og: and twitter:
+   * properties of a page.
+   */
+  static JSONObject parse(final String html) throws JSONException {
+    final JSONObject meta = new JSONObject();
+    if (html == null) {
+      return meta;
+    }
+    final int headEnd = indexOfHeadEnd(html, 0);
+    final String head = headEnd >= 0 ? html.substring(0, headEnd) : html;
+    final Matcher title = TITLE.matcher(head);
+    if (title.find()) {
+      meta.put("title", unescape(title.group(1).trim()));
+    }
+    final JSONObject og = new JSONObject();
+    final JSONObject twitter = new JSONObject();
+    final Matcher tag = TAG.matcher(head);
+    while (tag.find()) {
+      final String name = tag.group(1).toLowerCase(Locale.ROOT);
+      String key = null;
+      String value = null;
+      String rel = null;
+      final Matcher attribute = ATTRIBUTE.matcher(tag.group(2));
+      while (attribute.find()) {
+        final String attributeName = attribute.group(1).toLowerCase(Locale.ROOT);
+        String attributeValue = attribute.group(2);
+        if (attributeValue == null) {
+          attributeValue = attribute.group(3) != null ? attribute.group(3) : attribute.group(4);
+        }
+        if ("property".equals(attributeName) || "name".equals(attributeName)) {
+          key = attributeValue.trim().toLowerCase(Locale.ROOT);
+        } else if ("content".equals(attributeName) || "href".equals(attributeName)) {
+          value = unescape(attributeValue.trim());
+        } else if ("rel".equals(attributeName)) {
+          rel = attributeValue.toLowerCase(Locale.ROOT);
+        }
+      }
+      if (value == null) {
+        continue;
+      }
+      if ("link".equals(name)) {
+        if (rel != null && rel.contains("canonical")) {
+          meta.put("canonical", value);
+        }
+      } else if (key != null && key.startsWith("og:")) {
+        og.put(key.substring(3), value);
+      } else if (key != null && key.startsWith("twitter:")) {
+        twitter.put(key.substring(8), value);
+      } else if ("description".equals(key)) {
+        meta.put("description", value);
+      }
+    }
+    if (og.length() > 0) {
+      meta.put("og", og);
+    }
+    if (twitter.length() > 0) {
+      meta.put("twitter", twitter);
+    }
+    return meta;
+  }
+
+  /**
+   * Position of the end of the head: the closing head tag or, for pages
+   * omitting it, the opening body tag. Defaults to -1.
+   */
+  private static int indexOfHeadEnd(final String text, final int from) {
+    final String lower = text.toLowerCase(Locale.ROOT);
+    final int headClose = lower.indexOf("</head", from);
+    if (headClose >= 0) {
+      final int tagEnd = lower.indexOf('>', headClose);
+      return tagEnd >= 0 ? tagEnd + 1 : -1;
+    }
+    return lower.indexOf("<body", from);
+  }
+
+  /**
+   * The charset of the Content-Type header, else of a meta tag, else UTF-8.
+   */
+  private static Charset charsetOf(final String contentType, final byte[] bytes, final int length) {
+    if (contentType != null) {
+      final Charset charset = lookup(CHARSET.matcher(contentType));
+      if (charset != null) {
+        return charset;
+      }
+    }
+    final String text = new String(bytes, 0, Math.min(length, 2048), StandardCharsets.ISO_8859_1);
+    final Charset charset = lookup(META_CHARSET.matcher(text));
+    return charset != null ? charset : StandardCharsets.UTF_8;
+  }
+
+  private static Charset lookup(final Matcher matcher) {
+    if (!matcher.find()) {
+      return null;
+    }
+    try {
+      return Charset.forName(matcher.group(1));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static String unescape(final String text) {
+    if (text.indexOf('&') < 0) {
+      return text;
+    }
+    final Matcher matcher = ENTITY.matcher(text);
+    final StringBuffer result = new StringBuffer(text.length());
+    while (matcher.find()) {
+      final String entity = matcher.group(1);
+      String replacement = matcher.group();
+      try {
+        if (entity.startsWith("#x")) {
+          replacement = new String(Character.toChars(Integer.parseInt(entity.substring(2), 16)));
+        } else if (entity.startsWith("#")) {
+          replacement = new String(Character.toChars(Integer.parseInt(entity.substring(1))));
+        } else if ("amp".equals(entity)) {
+          replacement = "&";
+        } else if ("lt".equals(entity)) {
+          replacement = "<";
+        } else if ("gt".equals(entity)) {
+          replacement = ">";
+        } else if ("quot".equals(entity)) {
+          replacement = "\"";
+        } else if ("apos".equals(entity)) {
+          replacement = "'";
+        } else if ("nbsp".equals(entity)) {
+          replacement = "\u00a0";
+        }
+      } catch (IllegalArgumentException e) {
+        // Keep the entity as is
+      }
+      matcher.appendReplacement(result, Matcher.quoteReplacement(replacement));
+    }
+    matcher.appendTail(result);
+    return result.toString();
+  }
+}
@@ -8,7 +8,10 @@ import android.os.Bundle;
 import androidx.annotation.RequiresApi;
 import android.util.Log;
 
+import java.io.IOException;
+
 import org.json.JSONException;
+import org.json.JSONObject;
 
 /**
  * Activity that intercepts share intents and processes them before launching MainActivity.
@@ -32,9 +35,22 @@ public class IntentActivity extends Activity {
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     Log.v(LOG_TAG, "onCreate - Processing share intent");
+    ShareConfig.load(this);
+    ShareTracer.setUp(this);
+    ShareBudget.load(this);
 
-    // Process the intent and launch MainActivity
-    forceMainActivityReload();
+    try (ShareTracer.Span span = ShareTracer.span("IntentActivity.onCreate")) {
+      if (IntentDedup.isDuplicate(getIntent())) {
+        // Already handled, when the activity is created again for instance
+        Log.v(LOG_TAG, "onCreate - Same share delivered again, skipping");
+      } else if (ShareConfig.progressiveDelivery && Serializer.countItems(getIntent()) > 0) {
+        // The plugin processes the share and sends its items as they are ready
+        forwardShareIntent();
+      } else {
+        // Process the intent and launch MainActivity
+        forceMainActivityReload();
+      }
+    }
 
     // Finish this activity immediately (it's just an intermediary)
     finish();
@@ -57,12 +73,17 @@ public class IntentActivity extends Activity {
       return;
     }
 
-    StartActivityFun sendIntent = (org.json.JSONObject json) -> {
+    StartActivityFun sendIntent = (JSONObject json) -> {
       PackageManager pm = getPackageManager();
       Intent launchIntent = pm.getLaunchIntentForPackage(getApplicationContext().getPackageName());
 
       if (json != null) {
-        launchIntent.putExtra("json", json.toString());
+        putJsonExtra(launchIntent, json);
+      }
+      // Files and lazy items are read later through their handle, from MainActivity
+      if (getIntent().getClipData() != null) {
+        launchIntent.setClipData(getIntent().getClipData());
+        launchIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
       }
 
       launchIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
@@ -76,4 +97,44 @@ public class IntentActivity extends Activity {
       Log.e(LOG_TAG, "Error processing intent: " + e.getMessage(), e);
     }
   }
+
+  /**
+   * Launches MainActivity with the share intent as is.
+   * <p>
+   * The read permission on the shared content is passed along with the
+   * intent, so the plugin can read it from MainActivity.
+   */
+  private void forwardShareIntent() {
+    final Intent share = getIntent();
+    final Intent launchIntent = getPackageManager()
+      .getLaunchIntentForPackage(getApplicationContext().getPackageName());
+    launchIntent.setAction(share.getAction());
+    launchIntent.setType(share.getType());
+    launchIntent.putExtras(share);
+    if (share.getClipData() != null) {
+      launchIntent.setClipData(share.getClipData());
+    }
+    launchIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_GRANT_READ_URI_PERMISSION);
+    launchIntent.putExtra("cdvStartInBackground", false);
+    this.startActivity(launchIntent);
+  }
+
+  /**
+   * Attaches the processed data to the launch intent.
+   * <p>
+   * Large payloads are written to a handoff file and only its name is sent,
+   * the Binder transaction buffer is limited to about 1 MB for the whole process.
+   */
+  private void putJsonExtra(final Intent launchIntent, final JSONObject json) {
+    final String jsonString = json.toString();
+    if (jsonString.length() > HandoffStore.INLINE_LIMIT) {
+      try {
+        launchIntent.putExtra(HandoffStore.EXTRA_HANDOFF, HandoffStore.write(this, jsonString));
+        return;
+      } catch (IOException e) {
+        Log.w(LOG_TAG, "Cannot write handoff file, sending inline: " + e.getMessage());
+      }
+    }
+    launchIntent.putExtra("json", jsonString);
+  }
 }
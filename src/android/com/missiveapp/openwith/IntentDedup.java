@@ -0,0 +1,86 @@
+package com.missiveapp.openwith;
+
+import android.content.ClipData;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+
+/**
+ * Drops duplicate deliveries of the same intent before any processing.
+ * <p>
+ * The same share may reach the plugin twice, once from init() on cold start
+ * and once from the framework calling onNewIntent(), and IntentActivity may be
+ * created again for a share it already handled. Intents are identified by a
+ * fingerprint of their target, action, type, shared Uris and texts, and of
+ * the processed JSON IntentActivity attached. A fingerprint seen within the
+ * last ShareConfig.dedupWindow milliseconds is a duplicate.
+ */
+final class IntentDedup {
+
+  private static DedupIndex index;
+
+  private IntentDedup() {
+  }
+
+  /**
+   * The index shared by the plugin and IntentActivity.
+   */
+  static synchronized DedupIndex index() {
+    if (index == null) {
+      index = new DedupIndex(ShareConfig.dedupCapacity, ShareConfig.dedupWindow);
+    }
+    return index;
+  }
+
+  /**
+   * Whether the intent was already seen recently, it is recorded if it was not.
+   */
+  static boolean isDuplicate(final Intent intent) {
+    if (ShareConfig.dedupWindow <= 0) {
+      return false;
+    }
+    return index().isDuplicate(fingerprint(intent), SystemClock.elapsedRealtime());
+  }
+
+  /**
+   * The fingerprint of an intent: consistent across multiple reads of the same
+   * intent, and cheap even when it carries a large processed JSON.
+   */
+  static String fingerprint(final Intent intent) {
+    final Fingerprint key = new Fingerprint(
+      intent.getComponent() != null ? intent.getComponent().getClassName() : null,
+      intent.getAction(), intent.getType());
+    key.value("data", intent.getData());
+    final Bundle extras = intent.getExtras();
+    if (extras != null) {
+      final Object json = extras.get("json");
+      key.text("json", json != null ? json.toString() : null);
+      key.value("handoff", extras.getString(HandoffStore.EXTRA_HANDOFF));
+      key.text("text", extras.getString(Intent.EXTRA_TEXT));
+      key.text("subject", extras.getString(Intent.EXTRA_SUBJECT));
+      final Object stream = extras.get(Intent.EXTRA_STREAM);
+      if (stream instanceof Uri) {
+        key.value("stream", stream);
+      } else if (stream instanceof ArrayList) {
+        for (Object uri : (ArrayList<?>) stream) {
+          key.value("stream", uri);
+        }
+      }
+    }
+    final ClipData clipData = intent.getClipData();
+    if (clipData != null) {
+      for (int i = 0; i < clipData.getItemCount(); i++) {
+        final ClipData.Item item = clipData.getItemAt(i);
+        if (item.getUri() != null) {
+          key.value("clip", item.getUri());
+        } else if (item.getText() != null) {
+          key.text("clip", item.getText().toString());
+        }
+      }
+    }
+    return key.toString();
+  }
+}
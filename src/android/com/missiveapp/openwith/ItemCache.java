@@ -0,0 +1,227 @@
+package com.missiveapp.openwith;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Cache of processed share items, keyed by their Uri, size and modification date.
+ * <p>
+ * Items are only cached when the provider exposes these. The content itself
+ * is not hashed, that would read it once more on every first share, so a
+ * provider that reuses a Uri for new content of the same size without
+ * changing its modification date gets the stale entry. For each key, the
+ * derived artifacts (path info, dimensions, QR strings...) and optionally the
+ * base64 payload are kept in the cache directory, where the least recently
+ * used files are evicted once ShareConfig.itemCacheDiskBytes is exceeded.
+ * A repeated share then costs a metadata query instead of a full encode and
+ * QR scan. Disabled by default, see ShareConfig.itemCache.
+ */
+final class ItemCache {
+
+  private static final String ARTIFACTS = ".json";
+
+  private static final String PAYLOAD = ".b64";
+
+  private static ItemCache instance;
+
+  private final File directory;
+
+  private ItemCache(final File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * The cache of the application, or null if it is disabled.
+   */
+  static synchronized ItemCache get(final Context context) {
+    if (!ShareConfig.itemCache) {
+      return null;
+    }
+    if (instance == null) {
+      instance = new ItemCache(new File(context.getApplicationContext().getCacheDir(), "openwith-items"));
+    }
+    return instance;
+  }
+
+  /**
+   * Compute the key of the content at a given Uri, from its size and
+   * modification date columns. Defaults to null, when the provider does not
+   * have them: the item is then not cached.
+   */
+  String keyFor(final ContentResolver contentResolver, final Uri uri) {
+    try (Cursor cursor = contentResolver.query(uri, null, null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        final String size = column(cursor, OpenableColumns.SIZE);
+        String modified = column(cursor, DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+        if (modified == null) {
+          modified = column(cursor, MediaStore.MediaColumns.DATE_MODIFIED);
+        }
+        if (size != null && modified != null) {
+          return digest(("m:" + uri + "|" + size + "|" + modified).getBytes(StandardCharsets.UTF_8));
+        }
+      }
+    } catch (RuntimeException e) {
+      // Not cached
+    }
+    return null;
+  }
+
+  /**
+   * Return the artifacts stored for a key, or null.
+   */
+  synchronized JSONObject getArtifacts(final String key) {
+    final byte[] bytes = readFile(new File(directory, artifactsName(key)));
+    if (bytes == null) {
+      return null;
+    }
+    try {
+      return new JSONObject(new String(bytes, StandardCharsets.UTF_8));
+    } catch (JSONException e) {
+      new File(directory, artifactsName(key)).delete();
+      return null;
+    }
+  }
+
+  /**
+   * Store the artifacts of a key.
+   */
+  synchronized void putArtifacts(final String key, final JSONObject artifacts) {
+    writeFile(new File(directory, artifactsName(key)), artifacts.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Return the base64 payload stored for a key, or null.
+   */
+  synchronized String getPayload(final String key) {
+    final byte[] bytes = readFile(new File(directory, key + PAYLOAD));
+    return bytes == null ? null : new String(bytes, StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Store the base64 payload of a key, unless it would take more than a
+   * quarter of the cache.
+   */
+  synchronized void putPayload(final String key, final String payload) {
+    if (payload.isEmpty() || payload.length() > ShareConfig.itemCacheDiskBytes / 4) {
+      return;
+    }
+    writeFile(new File(directory, key + PAYLOAD), payload.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  /**
+   * Artifacts depend on the preview settings, keep them apart when these change.
+   */
+  private static String artifactsName(final String key) {
+    final String variant = Arrays.toString(ShareConfig.thumbnailSizes)
+      + ShareConfig.thumbnailFormat + ShareConfig.thumbnailQuality;
+    return key + "-" + Integer.toHexString(variant.hashCode()) + ARTIFACTS;
+  }
+
+  private static String column(final Cursor cursor, final String name) {
+    final int index = cursor.getColumnIndex(name);
+    if (index < 0 || cursor.isNull(index)) {
+      return null;
+    }
+    return cursor.getString(index);
+  }
+
+  private static String digest(final byte[] bytes) {
+    return "m" + hex(newDigest().digest(bytes));
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(final byte[] bytes) {
+    final StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  private static byte[] readFile(final File file) {
+    if (!file.isFile()) {
+      return null;
+    }
+    try (InputStream in = new FileInputStream(file)) {
+      final byte[] bytes = ByteStreams.toByteArray(in);
+      file.setLastModified(System.currentTimeMillis());
+      return bytes;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private void writeFile(final File file, final byte[] bytes) {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      return;
+    }
+    final File tmp = new File(directory, file.getName() + ".tmp");
+    try (OutputStream out = new FileOutputStream(tmp)) {
+      out.write(bytes);
+    } catch (IOException e) {
+      tmp.delete();
+      return;
+    }
+    if (!tmp.renameTo(file)) {
+      tmp.delete();
+      return;
+    }
+    evict();
+  }
+
+  /**
+   * Delete the least recently used files until the directory fits its budget.
+   */
+  private void evict() {
+    final File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    long total = 0;
+    for (File file : files) {
+      total += file.length();
+    }
+    if (total <= ShareConfig.itemCacheDiskBytes) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(final File a, final File b) {
+        return Long.compare(a.lastModified(), b.lastModified());
+      }
+    });
+    for (File file : files) {
+      if (total <= ShareConfig.itemCacheDiskBytes) {
+        break;
+      }
+      total -= file.length();
+      file.delete();
+    }
+  }
+}
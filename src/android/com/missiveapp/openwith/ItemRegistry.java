@@ -0,0 +1,79 @@
+package com.missiveapp.openwith;
+
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opaque handles on shared content, for items serialized without their data.
+ * <p>
+ * A handle stands for a content Uri for ShareConfig.handleTtl milliseconds,
+ * after which it expires and its data can no longer be loaded through it.
+ */
+final class ItemRegistry {
+
+  private static final class Entry {
+    final String uri;
+    final long expiresAt;
+
+    Entry(final String uri, final long expiresAt) {
+      this.uri = uri;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  private static final SecureRandom random = new SecureRandom();
+
+  private ItemRegistry() {
+  }
+
+  /**
+   * Register a content Uri and return a new handle for it.
+   */
+  static String register(final String uri) {
+    final long now = System.currentTimeMillis();
+    purge(now);
+    final byte[] bytes = new byte[12];
+    random.nextBytes(bytes);
+    final StringBuilder handle = new StringBuilder("h");
+    for (byte b : bytes) {
+      handle.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    entries.put(handle.toString(), new Entry(uri, now + ShareConfig.handleTtl));
+    return handle.toString();
+  }
+
+  /**
+   * Return the Uri a handle stands for, or null if it is unknown or expired.
+   */
+  static String resolve(final String handle) {
+    final Entry entry = entries.get(handle);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expiresAt <= System.currentTimeMillis()) {
+      entries.remove(handle);
+      return null;
+    }
+    return entry.uri;
+  }
+
+  /**
+   * Forget a handle before it expires.
+   */
+  static void release(final String handle) {
+    entries.remove(handle);
+  }
+
+  private static void purge(final long now) {
+    final Iterator<Entry> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().expiresAt <= now) {
+        iterator.remove();
+      }
+    }
+  }
+}
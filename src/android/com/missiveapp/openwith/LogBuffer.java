@@ -0,0 +1,133 @@
+package com.missiveapp.openwith;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+
+/**
+ * Bounded buffer of the log messages forwarded to javascript.
+ * <p>
+ * Messages are sent in batches, once batchSize of them are waiting or
+ * flushDelay milliseconds after the first of them, whichever comes first,
+ * so logging does not cost a bridge message each time. When more than
+ * capacity messages are waiting, the oldest ones are dropped and the next
+ * batch says how many.
+ */
+final class LogBuffer {
+
+  /**
+   * Where batches of messages go
+   */
+  interface Sink {
+    void send(JSONArray batch);
+  }
+
+  private final String[] ring;
+
+  private final int batchSize;
+
+  private final long flushDelay;
+
+  private final Sink sink;
+
+  private int head = 0;
+
+  private int size = 0;
+
+  private int dropped = 0;
+
+  private ScheduledExecutorService timer;
+
+  private ScheduledFuture<?> scheduled;
+
+  LogBuffer(final int capacity, final int batchSize, final long flushDelay, final Sink sink) {
+    this.ring = new String[capacity];
+    this.batchSize = batchSize;
+    this.flushDelay = flushDelay;
+    this.sink = sink;
+  }
+
+  /**
+   * Queue a message, formatted as "level:message".
+   */
+  synchronized void add(final String message) {
+    if (size == ring.length) {
+      ring[head] = null;
+      head = (head + 1) % ring.length;
+      size--;
+      dropped++;
+    }
+    ring[(head + size) % ring.length] = message;
+    size++;
+    if (size >= batchSize) {
+      flush();
+    } else if (scheduled == null) {
+      if (timer == null) {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, (Runnable runnable) -> {
+          final Thread thread = new Thread(runnable, "openwith-log");
+          thread.setDaemon(true);
+          return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        timer = executor;
+      }
+      scheduled = timer.schedule(this::flush, flushDelay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Send the waiting messages now.
+   */
+  synchronized void flush() {
+    if (scheduled != null) {
+      scheduled.cancel(false);
+      scheduled = null;
+    }
+    if (size == 0 && dropped == 0) {
+      return;
+    }
+    final JSONArray batch = new JSONArray();
+    if (dropped > 0) {
+      batch.put("20:" + dropped + " log message(s) dropped");
+      dropped = 0;
+    }
+    for (int i = 0; i < size; i++) {
+      final int index = (head + i) % ring.length;
+      batch.put(ring[index]);
+      ring[index] = null;
+    }
+    head = 0;
+    size = 0;
+    sink.send(batch);
+  }
+
+  /**
+   * Forget the waiting messages.
+   */
+  synchronized void clear() {
+    if (scheduled != null) {
+      scheduled.cancel(false);
+      scheduled = null;
+    }
+    for (int i = 0; i < ring.length; i++) {
+      ring[i] = null;
+    }
+    head = 0;
+    size = 0;
+    dropped = 0;
+  }
+
+  /**
+   * Forget the waiting messages and stop the timer.
+   */
+  synchronized void shutdown() {
+    clear();
+    if (timer != null) {
+      timer.shutdownNow();
+      timer = null;
+    }
+  }
+}
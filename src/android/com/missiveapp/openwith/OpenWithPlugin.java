@@ -1,12 +1,18 @@
 package com.missiveapp.openwith;
 
+import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.Configuration;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
 import androidx.annotation.RequiresApi;
+import android.util.Base64;
 import android.util.Log;
 //import android.util.SparseArray;
 //
@@ -14,19 +20,17 @@ import android.util.Log;
 //import com.google.android.gms.vision.barcode.Barcode;
 //import com.google.android.gms.vision.barcode.BarcodeDetector;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.stream.Collectors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
@@ -67,12 +71,47 @@ public class OpenWithPlugin extends CordovaPlugin {
   /**
    * Current verbosity level, changed with setVerbosity
    */
-  private int verbosity = INFO;
+  private volatile int verbosity = INFO;
+
+  /**
+   * A log message, only built when it is going to be logged
+   */
+  interface LogMessage {
+    String build();
+  }
+
+  /**
+   * Messages waiting to be sent to the javascript logger
+   */
+  private final LogBuffer logBuffer = new LogBuffer(256, 32, 250, (JSONArray batch) -> {
+    final CallbackContext context = this.loggerContext;
+    if (context != null) {
+      final PluginResult result = new PluginResult(PluginResult.Status.OK, batch);
+      result.setKeepCallback(true);
+      context.sendPluginResult(result);
+    }
+  });
 
   /**
    * Log to the console if verbosity level is greater or equal to level
    */
   private void log(final int level, final String message) {
+    if (level >= verbosity) {
+      write(level, message);
+    }
+  }
+
+  /**
+   * Log to the console if verbosity level is greater or equal to level,
+   * the message is not even built otherwise.
+   */
+  private void log(final int level, final LogMessage message) {
+    if (level >= verbosity) {
+      write(level, message.build());
+    }
+  }
+
+  private void write(final int level, final String message) {
     switch (level) {
       case DEBUG:
         Log.d(PLUGIN_NAME, message);
@@ -87,19 +126,16 @@ public class OpenWithPlugin extends CordovaPlugin {
         Log.e(PLUGIN_NAME, message);
         break;
     }
-    if (level >= verbosity && loggerContext != null) {
-      final PluginResult result = new PluginResult(
-        PluginResult.Status.OK,
-        String.format("%d:%s", level, message));
-      result.setKeepCallback(true);
-      loggerContext.sendPluginResult(result);
+    if (loggerContext != null) {
+      logBuffer.add(level + ":" + message);
     }
   }
 
   /**
-   * Callback to the javascript onNewFile method
+   * Callback to the javascript onNewFile method, set on the bridge thread and
+   * read by the threads sending intents
    */
-  private CallbackContext handlerContext;
+  private volatile CallbackContext handlerContext;
 
   /**
    * Callback to the javascript logger method
@@ -109,13 +145,53 @@ public class OpenWithPlugin extends CordovaPlugin {
   /**
    * Intents added before the handler has been registered
    */
-  private ArrayList pendingIntents = new ArrayList(); //NOPMD
+  private final PendingIntentQueue pendingIntents = new PendingIntentQueue(this::forgetDiscarded);
+
+  /**
+   * Fetches the content of shared URLs
+   */
+  private HtmlFetcher htmlFetcher;
+
+  /**
+   * Records the intents until javascript acknowledges them, null if disabled
+   */
+  private ShareJournal journal;
 
   /**
-   * Track if onNewIntent() was called by the framework (not by init())
+   * Sends the intents in binary mode, one at a time, see sendBinaryToJavascript()
+   */
+  private final ExecutorService binarySender = Executors.newSingleThreadExecutor();
+
+  /**
+   * Identifies the shares delivered progressively, see streamInfoAndSend()
+   */
+  private final AtomicInteger sessionCount = new AtomicInteger();
+
+  /**
+   * Track if onNewIntent() was called by the framework (init() calls handleIntent())
    * This helps us understand the sequence of events
    */
-  private boolean onNewIntentCalledByFramework = false;
+  private volatile boolean onNewIntentCalledByFramework = false;
+
+  /**
+   * Processes the incoming intents one at a time, off the UI and bridge threads
+   */
+  private final ExecutorService intentExecutor = Executors.newSingleThreadExecutor();
+
+  /**
+   * When init() was last called, in SystemClock.elapsedRealtime() milliseconds
+   */
+  private volatile long initAt = 0;
+
+  /**
+   * Milliseconds from process start to init(), -1 if unknown
+   */
+  private volatile long processStartToInit = -1;
+
+  /**
+   * Milliseconds from init() to the first item sent to javascript, -1 until then
+   */
+  private final AtomicLong initToFirstItem = new AtomicLong(-1);
 
   /**
    * Track if onNewIntent() has been called for the current activity's intent.
@@ -124,6 +200,59 @@ public class OpenWithPlugin extends CordovaPlugin {
    */
   // private String lastProcessedIntentKey = null;
 
+  /**
+   * Called after the plugin is constructed and its fields are initialized.
+   */
+  @Override
+  protected void pluginInitialize() {
+    ShareConfig.load(preferences);
+    ShareTracer.setUp(cordova.getActivity());
+    ShareBudget.load(cordova.getActivity());
+    htmlFetcher = new HtmlFetcher(new HtmlCache(cordova.getActivity().getCacheDir()));
+    if (ShareConfig.journal) {
+      journal = new ShareJournal(cordova.getActivity().getFilesDir());
+    }
+    cordova.getActivity().getApplicationContext().registerComponentCallbacks(memoryCallbacks);
+  }
+
+  /**
+   * Frees the cached native resources when the system runs low on memory
+   */
+  private final ComponentCallbacks2 memoryCallbacks = new ComponentCallbacks2() {
+    @Override
+    public void onTrimMemory(final int level) {
+      if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+        BarcodeDetectorPool.releaseAll();
+        htmlFetcher.trimMemory();
+      }
+    }
+
+    @Override
+    public void onLowMemory() {
+      BarcodeDetectorPool.releaseAll();
+      htmlFetcher.trimMemory();
+    }
+
+    @Override
+    public void onConfigurationChanged(final Configuration configuration) {
+    }
+  };
+
+  /**
+   * The final call you receive before your activity is destroyed.
+   */
+  @Override
+  public void onDestroy() {
+    cordova.getActivity().getApplicationContext().unregisterComponentCallbacks(memoryCallbacks);
+    BarcodeDetectorPool.releaseAll();
+    htmlFetcher.shutdown();
+    binarySender.shutdownNow();
+    intentExecutor.shutdownNow();
+    logBuffer.shutdown();
+  }
+
   /**
    * Called when the WebView does a top-level navigation or refreshes.
    * <p>
@@ -136,7 +265,12 @@ public class OpenWithPlugin extends CordovaPlugin {
     verbosity = INFO;
     handlerContext = null;
     loggerContext = null;
+    logBuffer.clear();
     pendingIntents.clear();
+    htmlFetcher.cancelAll();
+    if (journal != null) {
+      journal.forgetSession();
+    }
     onNewIntentCalledByFramework = false;
     // lastProcessedIntentKey = null;
   }
@@ -180,7 +314,7 @@ public class OpenWithPlugin extends CordovaPlugin {
    */
   @Override
   public boolean execute(final String action, final JSONArray data, final CallbackContext callbackContext) {
-    log(DEBUG, "execute() called with action:" + action + " and options: " + data);
+    log(DEBUG, () -> "execute() called with action:" + action + " and options: " + data);
     if ("setVerbosity".equals(action)) {
       return setVerbosity(data, callbackContext);
     } else if ("init".equals(action)) {
@@ -191,15 +325,29 @@ public class OpenWithPlugin extends CordovaPlugin {
       return setLogger(data, callbackContext);
     } else if ("load".equals(action)) {
       return load(data, callbackContext);
+    } else if ("loadChunk".equals(action)) {
+      return loadChunk(data, callbackContext);
+    } else if ("stat".equals(action)) {
+      return stat(data, callbackContext);
+    } else if ("release".equals(action)) {
+      return release(data, callbackContext);
+    } else if ("ack".equals(action)) {
+      return ack(data, callbackContext);
+    } else if ("getStats".equals(action)) {
+      return getStats(data, callbackContext);
+    } else if ("setBudgets".equals(action)) {
+      return setBudgets(data, callbackContext);
+    } else if ("resetStats".equals(action)) {
+      return resetStats(data, callbackContext);
     } else if ("exit".equals(action)) {
       return exit(data, callbackContext);
     }
-    log(DEBUG, "execute() did not recognize this action: " + action);
+    log(DEBUG, () -> "execute() did not recognize this action: " + action);
     return false;
   }
 
   public boolean setVerbosity(final JSONArray data, final CallbackContext context) {
-    log(DEBUG, "setVerbosity() " + data);
+    log(DEBUG, () -> "setVerbosity() " + data);
     if (data.length() != 1) {
       log(WARN, "setVerbosity() -> invalidAction");
       return false;
@@ -216,32 +364,177 @@ public class OpenWithPlugin extends CordovaPlugin {
 
   // Initialize the plugin
   public boolean init(final JSONArray data, final CallbackContext context) {
-    log(DEBUG, "init() " + data);
+    log(DEBUG, () -> "init() " + data);
     if (data.length() != 0) {
       log(WARN, "init() -> invalidAction");
       return false;
     }
-    // Process the intent that launched the app (cold start).
-    // Only process if onNewIntent() hasn't already processed it.
-    Intent intent = cordova.getActivity().getIntent();
-    
-    if (intent != null) {
-      // Decision logic: Only process in init() if the framework did NOT call onNewIntent().
-      // If framework called it, onNewIntent() will process it when handler is set.
-      if (onNewIntentCalledByFramework) {
-        log(DEBUG, "init() - Framework already called onNewIntent(), skipping");
-      } else {
-        log(DEBUG, "init() - Processing intent from onCreate (cold start)");
-        onNewIntent(intent);
-      }
+    initAt = SystemClock.elapsedRealtime();
+    initToFirstItem.set(-1);
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+      processStartToInit = initAt - Process.getStartElapsedRealtime();
     }
+    // Answer right away, the intents are processed in the background and
+    // reach javascript through the handler callback
+    final Intent intent = cordova.getActivity().getIntent();
+    // Read now: an onNewIntent() coming before the task runs is a later share,
+    // it must not make the task skip the one that launched the app
+    final boolean newIntentCalled = onNewIntentCalledByFramework;
+    intentExecutor.execute(() -> {
+      // Replay the intents a previous page or process did not acknowledge
+      if (journal != null) {
+        for (JSONObject record : journal.unacknowledged()) {
+          log(INFO, "init() - Replaying an intent from the journal");
+          try {
+            deliver(replay(record));
+          } catch (JSONException e) {
+            log(WARN, () -> "init() - Cannot replay an intent: " + e.getMessage());
+          }
+        }
+      }
+      // Process the intent that launched the app (cold start).
+      // Only process if onNewIntent() hasn't already processed it.
+      if (intent != null) {
+        // Decision logic: Only process in init() if the framework did NOT call onNewIntent().
+        // If framework called it, onNewIntent() processes it.
+        if (newIntentCalled) {
+          log(DEBUG, "init() - Framework already called onNewIntent(), skipping");
+        } else {
+          log(DEBUG, "init() - Processing intent from onCreate (cold start)");
+          handleIntent(intent);
+        }
+      }
+    });
     log(DEBUG, "init() -> ok");
     return PluginResultSender.ok(context);
   }
 
+  /**
+   * Rebuild an intent from its journal record, which only references the
+   * shared items: the data of the items that had some is read again, and
+   * the items get a new handle. Items that cannot be read anymore (the grant
+   * on their Uri died with the process) are sent without data.
+   */
+  private JSONObject replay(final JSONObject record) throws JSONException {
+    final JSONObject intent = record.getJSONObject("intent");
+    final JSONArray items = intent.optJSONArray("items");
+    if (items == null) {
+      return intent;
+    }
+    final JSONArray reload = record.optJSONArray("reload");
+    final ContentResolver contentResolver = this.cordova
+      .getActivity().getApplicationContext().getContentResolver();
+    final ShareBudget budget = new ShareBudget();
+    for (int i = 0; i < items.length(); i++) {
+      final JSONObject item = items.optJSONObject(i);
+      if (item == null || !item.has("uri")) {
+        continue;
+      }
+      final String uri = item.getString("uri");
+      item.put("handle", ItemRegistry.register(uri));
+      if (reload == null || !contains(reload, i)) {
+        continue;
+      }
+      try {
+        final String data = Serializer.getDataFromURI(contentResolver, Uri.parse(uri), budget);
+        if (!data.isEmpty()) {
+          item.put("data", data);
+        }
+      } catch (ShareBudget.ExceededException e) {
+        item.put("downgraded", e.reason);
+      }
+    }
+    return intent;
+  }
+
+  private static boolean contains(final JSONArray indexes, final int index) {
+    for (int i = 0; i < indexes.length(); i++) {
+      if (indexes.optInt(i, -1) == index) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // A handler received an intent, it does not need to be replayed
+  public boolean ack(final JSONArray data, final CallbackContext context) {
+    log(DEBUG, "ack()");
+    if (data.length() != 1) {
+      log(WARN, "ack() -> invalidAction");
+      return false;
+    }
+    final String journalId = data.optString(0);
+    if (journal != null) {
+      cordova.getThreadPool().execute(() -> journal.acknowledge(journalId));
+    }
+    log(DEBUG, "ack() -> ok");
+    return PluginResultSender.ok(context);
+  }
+
+  // Counters of the share processing
+  public boolean getStats(final JSONArray data, final CallbackContext context) {
+    log(DEBUG, "getStats()");
+    if (data.length() != 0) {
+      log(WARN, "getStats() -> invalidAction");
+      return false;
+    }
+    try {
+      final DedupIndex dedup = IntentDedup.index();
+      final JSONObject dedupStats = new JSONObject();
+      dedupStats.put("hits", dedup.hits());
+      dedupStats.put("misses", dedup.misses());
+      dedupStats.put("size", dedup.size());
+      final JSONObject startup = new JSONObject();
+      startup.put("processStartToInit", processStartToInit);
+      startup.put("initToFirstItem", initToFirstItem.get());
+      final JSONObject stats = new JSONObject();
+      stats.put("dedup", dedupStats);
+      stats.put("startup", startup);
+      stats.put("stages", PipelineStats.toJson());
+      context.sendPluginResult(new PluginResult(PluginResult.Status.OK, stats));
+      log(DEBUG, "getStats() -> ok");
+      return true;
+    } catch (JSONException e) {
+      log(WARN, "getStats() -> json error");
+      return false;
+    }
+  }
+
+  // Limit the resources a share may take, see ShareBudget
+  public boolean setBudgets(final JSONArray data, final CallbackContext context) {
+    log(DEBUG, () -> "setBudgets() " + data);
+    if (data.length() != 1 || data.optJSONObject(0) == null) {
+      log(WARN, "setBudgets() -> invalidAction");
+      return false;
+    }
+    final Context appContext = cordova.getActivity().getApplicationContext();
+    try {
+      ShareBudget.set(appContext, data.getJSONObject(0));
+      context.sendPluginResult(new PluginResult(PluginResult.Status.OK, ShareBudget.current()));
+      log(DEBUG, "setBudgets() -> ok");
+    } catch (JSONException e) {
+      context.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, e.getMessage()));
+      log(WARN, () -> "setBudgets() -> " + e.getMessage());
+    }
+    return true;
+  }
+
+  // Start counting again, the startup times are kept
+  public boolean resetStats(final JSONArray data, final CallbackContext context) {
+    log(DEBUG, "resetStats()");
+    if (data.length() != 0) {
+      log(WARN, "resetStats() -> invalidAction");
+      return false;
+    }
+    IntentDedup.index().resetCounts();
+    PipelineStats.reset();
+    log(DEBUG, "resetStats() -> ok");
+    return PluginResultSender.ok(context);
+  }
+
   // Exit after processing
   public boolean exit(final JSONArray data, final CallbackContext context) {
-    log(DEBUG, "exit() " + data);
+    log(DEBUG, () -> "exit() " + data);
     if (data.length() != 0) {
       log(WARN, "exit() -> invalidAction");
       return false;
@@ -252,7 +545,7 @@ public class OpenWithPlugin extends CordovaPlugin {
   }
 
   public boolean setHandler(final JSONArray data, final CallbackContext context) {
-    log(DEBUG, "setHandler() " + data);
+    log(DEBUG, () -> "setHandler() " + data);
     if (data.length() != 0) {
       log(WARN, "setHandler() -> invalidAction");
       return false;
@@ -260,16 +553,15 @@ public class OpenWithPlugin extends CordovaPlugin {
     handlerContext = context;
     // Process any pending intents that were added before the handler was set.
     // This handles the case where framework called onNewIntent() before setHandler().
-    if (pendingIntents.size() > 0) {
-      log(DEBUG, "setHandler() - Processing " + pendingIntents.size() + " pending intent(s)");
-      processPendingIntents();
-    }
+    // Always drain: a message queued while the handler was being set may not be counted yet.
+    log(DEBUG, () -> "setHandler() - Processing " + pendingIntents.size() + " pending intent(s)");
+    processPendingIntents();
     log(DEBUG, "setHandler() -> ok");
     return PluginResultSender.noResult(context, true);
   }
 
   public boolean setLogger(final JSONArray data, final CallbackContext context) {
-    log(DEBUG, "setLogger() " + data);
+    log(DEBUG, () -> "setLogger() " + data);
     if (data.length() != 0) {
       log(WARN, "setLogger() -> invalidAction");
       return false;
@@ -279,6 +571,22 @@ public class OpenWithPlugin extends CordovaPlugin {
     return PluginResultSender.noResult(context, true);
   }
 
+  /**
+   * The Uri of a data descriptor: the one its handle stands for, else its "uri".
+   *
+   * @throws JSONException if the handle expired or there is no uri
+   */
+  private static Uri resolveUri(final JSONObject fileDescriptor) throws JSONException {
+    if (fileDescriptor.has("handle")) {
+      final String uri = ItemRegistry.resolve(fileDescriptor.getString("handle"));
+      if (uri == null) {
+        throw new JSONException("unknown or expired handle");
+      }
+      return Uri.parse(uri);
+    }
+    return Uri.parse(fileDescriptor.getString("uri"));
+  }
+
   public boolean load(final JSONArray data, final CallbackContext context) {
     log(DEBUG, "load()");
     if (data.length() != 1) {
@@ -291,15 +599,128 @@ public class OpenWithPlugin extends CordovaPlugin {
       public void run() {
         try {
           final JSONObject fileDescriptor = data.getJSONObject(0);
-          final Uri uri = Uri.parse(fileDescriptor.getString("uri"));
-          final String data = Serializer.getDataFromURI(contentResolver, uri);
-          final PluginResult result = new PluginResult(PluginResult.Status.OK, data);
+          final Uri uri = resolveUri(fileDescriptor);
+          final PluginResult result;
+          if (ShareConfig.binaryTransfer) {
+            result = new PluginResult(PluginResult.Status.OK, Serializer.getBytesFromURI(contentResolver, uri));
+          } else {
+            result = new PluginResult(PluginResult.Status.OK, Serializer.getDataFromURI(contentResolver, uri));
+          }
           context.sendPluginResult(result);
-          log(DEBUG, "load() " + uri + " -> ok");
+          log(DEBUG, () -> "load() " + uri + " -> ok");
         } catch (JSONException e) {
           final PluginResult result = new PluginResult(PluginResult.Status.ERROR, e.getMessage());
           context.sendPluginResult(result);
           log(DEBUG, "load() -> json error");
+        } catch (IOException e) {
+          final PluginResult result = new PluginResult(PluginResult.Status.IO_EXCEPTION, e.getMessage());
+          context.sendPluginResult(result);
+          log(WARN, () -> "load() -> io error: " + e.getMessage());
+        }
+      }
+    });
+    return true;
+  }
+
+  public boolean release(final JSONArray data, final CallbackContext context) {
+    log(DEBUG, "release()");
+    if (data.length() != 1) {
+      log(WARN, "release() -> invalidAction");
+      return false;
+    }
+    final JSONObject fileDescriptor = data.optJSONObject(0);
+    if (fileDescriptor != null && fileDescriptor.has("handle")) {
+      final String uri = ItemRegistry.resolve(fileDescriptor.optString("handle"));
+      if (uri != null) {
+        ChunkStreams.close(uri);
+      }
+      ItemRegistry.release(fileDescriptor.optString("handle"));
+    }
+    log(DEBUG, "release() -> ok");
+    return PluginResultSender.ok(context);
+  }
+
+  /**
+   * Largest slice loadChunk() will read at once, larger lengths are refused
+   */
+  private static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+
+  public boolean loadChunk(final JSONArray data, final CallbackContext context) {
+    log(DEBUG, "loadChunk()");
+    if (data.length() != 3) {
+      log(WARN, "loadChunk() -> invalidAction");
+      return false;
+    }
+    final ContentResolver contentResolver = this.cordova
+      .getActivity().getApplicationContext().getContentResolver();
+    cordova.getThreadPool().execute(new Runnable() {
+      public void run() {
+        try {
+          final JSONObject fileDescriptor = data.getJSONObject(0);
+          final Uri uri = resolveUri(fileDescriptor);
+          final long offset = data.getLong(1);
+          final long requested = data.getLong(2);
+          if (offset < 0 || requested < 0) {
+            throw new JSONException("offset and length must be positive");
+          }
+          // A shorter slice means the end of the data, never return one for a too large length
+          if (requested > MAX_CHUNK_SIZE) {
+            throw new JSONException("length must not exceed " + MAX_CHUNK_SIZE);
+          }
+          final int length = (int) requested;
+          final long readStart = PipelineStats.start();
+          final byte[] bytes = Serializer.getChunkFromURI(contentResolver, uri, offset, length);
+          PipelineStats.record(PipelineStats.Stage.READ, readStart, bytes.length);
+          final PluginResult result;
+          if (ShareConfig.binaryTransfer) {
+            result = new PluginResult(PluginResult.Status.OK, bytes);
+          } else {
+            final long encodeStart = PipelineStats.start();
+            final String base64 = Base64.encodeToString(bytes, Base64.NO_WRAP);
+            PipelineStats.record(PipelineStats.Stage.BASE64, encodeStart, base64.length());
+            result = new PluginResult(PluginResult.Status.OK, base64);
+          }
+          context.sendPluginResult(result);
+          log(DEBUG, () -> "loadChunk() " + uri + " [" + offset + "+" + bytes.length + "] -> ok");
+        } catch (JSONException e) {
+          final PluginResult result = new PluginResult(PluginResult.Status.ERROR, e.getMessage());
+          context.sendPluginResult(result);
+          log(DEBUG, "loadChunk() -> json error");
+        } catch (IOException e) {
+          final PluginResult result = new PluginResult(PluginResult.Status.IO_EXCEPTION, e.getMessage());
+          context.sendPluginResult(result);
+          log(WARN, () -> "loadChunk() -> io error: " + e.getMessage());
+        }
+      }
+    });
+    return true;
+  }
+
+  public boolean stat(final JSONArray data, final CallbackContext context) {
+    log(DEBUG, "stat()");
+    if (data.length() != 1) {
+      log(WARN, "stat() -> invalidAction");
+      return false;
+    }
+    final ContentResolver contentResolver = this.cordova
+      .getActivity().getApplicationContext().getContentResolver();
+    cordova.getThreadPool().execute(new Runnable() {
+      public void run() {
+        try {
+          final JSONObject fileDescriptor = data.getJSONObject(0);
+          final Uri uri = resolveUri(fileDescriptor);
+          final JSONObject stat = new JSONObject();
+          stat.put("uri", uri.toString());
+          stat.put("type", contentResolver.getType(uri));
+          stat.put("size", Serializer.getSizeFromURI(contentResolver, uri));
+          stat.put("maxChunkSize", MAX_CHUNK_SIZE);
+          final PluginResult result = new PluginResult(PluginResult.Status.OK, stat);
+          context.sendPluginResult(result);
+          log(DEBUG, () -> "stat() " + uri + " -> ok");
+        } catch (JSONException e) {
+          final PluginResult result = new PluginResult(PluginResult.Status.ERROR, e.getMessage());
+          context.sendPluginResult(result);
+          log(DEBUG, "stat() -> json error");
         }
       }
     });
@@ -308,90 +729,40 @@ public class OpenWithPlugin extends CordovaPlugin {
 
   /**
    * This is called when a new intent is sent while the app is already opened.
-   * <p>
-   * We also call it manually with the cordova application intent when the plugin
-   * is initialized (so all intents will be managed by this method).
    */
   @Override
   public void onNewIntent(final Intent intent) {
-    // Check if this is called by the framework or by init()
-    StackTraceElement[] stack = Thread.currentThread().getStackTrace();
-    boolean calledByInit = false;
-    for (StackTraceElement element : stack) {
-      if (element.getClassName().contains("OpenWithPlugin") && element.getMethodName().equals("init")) {
-        calledByInit = true;
-        break;
-      }
-    }
-    
-    if (!calledByInit) {
-      onNewIntentCalledByFramework = true;
-    }
-    
+    onNewIntentCalledByFramework = true;
     if (intent == null) {
       log(WARN, "onNewIntent() - Intent is null!");
       return;
     }
-    log(DEBUG, "onNewIntent() " + intent.getAction());
-
-    IntentActivity.StartActivityFun startAction = (JSONObject json) -> {
-      if (json != null) {
-        pendingIntents.add(json);
-      }
-      processPendingIntents();
-    };
-    populateInfoAndSend(intent, startAction);
+    intentExecutor.execute(() -> handleIntent(intent));
   }
 
   /**
-   * Creates a unique key for an intent to identify duplicates.
-   * Uses action, data URI, type, and a hash of the processed JSON (if present) to create the key.
-   * 
-   * IMPORTANT: The key must be consistent across multiple reads of the same intent.
-   * For share intents, we use a combination of action, type, and a stable identifier
-   * from the intent's content (URI or stream data) rather than relying on extras hash
-   * which can change as the intent is processed.
+   * Process an intent and send it to javascript, in the background.
+   * <p>
+   * Called for the intents the framework delivers, and by init() with the
+   * cordova application intent (so all intents will be managed by this method).
    */
-  private String createIntentKey(final Intent intent) {
-    if (intent == null) {
-      return null;
-    }
-    StringBuilder key = new StringBuilder();
-    key.append(intent.getAction());
-    
-    Bundle extras = intent.getExtras();
-    // For intents processed by IntentActivity, the "json" extra contains the processed data
-    // Use this as the primary identifier to prevent duplicate processing
-    if (extras != null && extras.get("json") != null) {
-      String jsonString = extras.get("json").toString();
-      // Use hash of JSON string to create a unique key for this processed intent
-      int jsonHash = jsonString.hashCode();
-      key.append("|json:").append(jsonHash);
-    } else {
-      // For intents not yet processed, use data URI and type
-      // These are stable identifiers that don't change as the intent is processed
-      if (intent.getData() != null) {
-        key.append("|").append(intent.getData().toString());
-      }
-      if (intent.getType() != null) {
-        key.append("|").append(intent.getType());
+  private void handleIntent(final Intent intent) {
+    log(DEBUG, () -> "handleIntent() " + intent.getAction());
+    try (ShareTracer.Span span = ShareTracer.span("handleIntent", intent.getAction())) {
+      if (IntentDedup.isDuplicate(intent)) {
+        log(DEBUG, "handleIntent() - Same intent delivered again, skipping");
+        return;
       }
-      // For share intents, also include a hash of the stream URI if present
-      // This is more stable than the full extras hash
-      if (extras != null) {
-        android.net.Uri streamUri = extras.getParcelable(Intent.EXTRA_STREAM);
-        if (streamUri != null) {
-          key.append("|stream:").append(streamUri.toString().hashCode());
+
+      IntentActivity.StartActivityFun startAction = (JSONObject json) -> {
+        if (json != null) {
+          deliver(json);
         } else {
-          // Fallback to extras hash only if no stream URI
-          // But use a more stable approach - hash only the keys, not values
-          java.util.Set<String> keys = extras.keySet();
-          int keysHash = keys.toString().hashCode();
-          key.append("|keys:").append(keysHash);
+          processPendingIntents();
         }
-      }
+      };
+      populateInfoAndSend(intent, startAction);
     }
-    return key.toString();
   }
 
   /**
@@ -402,67 +773,187 @@ public class OpenWithPlugin extends CordovaPlugin {
       log(WARN, "processPendingIntents() - handlerContext is null, cannot send to JavaScript");
       return;
     }
-    int pendingSize = pendingIntents.size();
-    for (int i = 0; i < pendingSize; i++) {
-      JSONObject intent = (JSONObject) pendingIntents.get(i);
-      sendIntentToJavascript(intent);
+    final boolean[] delivered = {false};
+    try (ShareTracer.Span span = ShareTracer.span("processPendingIntents")) {
+      pendingIntents.drain((JSONObject message) -> {
+        if (!sendIntentToJavascript(message)) {
+          return false;
+        }
+        // Progressive delivery ends with its complete event
+        if (!message.has("event") || "complete".equals(message.optString("event"))) {
+          delivered[0] = true;
+        }
+        return true;
+      });
+    }
+    if (delivered[0]) {
+      ShareTracer.endSession();
     }
-    pendingIntents.clear();
+  }
+
+  /**
+   * An intent the pending queue dropped or refused is not replayed from the journal either.
+   */
+  private void forgetDiscarded(final JSONObject message) {
+    final JSONObject intent = "complete".equals(message.optString("event"))
+      ? message.optJSONObject("intent")
+      : message;
+    final String journalId = intent != null ? intent.optString("journalId", null) : null;
+    if (journal != null && journalId != null) {
+      cordova.getThreadPool().execute(() -> journal.acknowledge(journalId));
+    }
+  }
+
+  /**
+   * Queue an intent, or a progressive delivery event, and send it if the handler is defined.
+   */
+  private void deliver(final JSONObject message) {
+    if (journal != null) {
+      final JSONObject intent = message.has("event")
+        ? ("complete".equals(message.optString("event")) ? message.optJSONObject("intent") : null)
+        : message;
+      if (intent != null && !intent.has("journalId") && !journal.append(intent)) {
+        log(WARN, "deliver() - Cannot record the intent in the journal");
+      }
+    }
+    if (!pendingIntents.offer(message) && ShareConfig.pendingOverflow == PendingIntentQueue.Overflow.REJECT) {
+      log(WARN, "deliver() - Pending intent queue full, intent rejected");
+    }
+    final int dropped = pendingIntents.takeDropped();
+    if (dropped > 0) {
+      log(WARN, () -> "deliver() - Pending intent queue full, " + dropped + " intent(s) dropped");
+    }
+    processPendingIntents();
   }
 
   /**
    * Calls the javascript intent handlers.
+   *
+   * @return false if the handler is gone or the intent could not be sent, it is then queued again
    */
-  private void sendIntentToJavascript(final JSONObject intent) {
+  private boolean sendIntentToJavascript(final JSONObject intent) {
+    // onReset() may clear the handler meanwhile
+    final CallbackContext context = handlerContext;
+    if (context == null) {
+      return false;
+    }
+    recordFirstItem(intent);
+    if (ShareConfig.binaryTransfer) {
+      // Reading the data may take a while, keep it off the caller thread but in order
+      try {
+        binarySender.execute(() -> sendBinaryToJavascript(context, intent));
+        return true;
+      } catch (RejectedExecutionException e) {
+        return false;
+      }
+    }
     try {
+      final long start = PipelineStats.start();
       final PluginResult result = new PluginResult(PluginResult.Status.OK, intent);
       result.setKeepCallback(true);
-      handlerContext.sendPluginResult(result);
+      context.sendPluginResult(result);
+      PipelineStats.record(PipelineStats.Stage.DISPATCH, start, result.getMessage().length());
+      return true;
     } catch (Exception e) {
-      log(ERROR, "sendIntentToJavascript() - Error sending intent to JavaScript: " + e.getMessage());
-      e.printStackTrace();
+      log(ERROR, () -> "sendIntentToJavascript() - Error sending intent to JavaScript: " + e.getMessage());
+      return false;
     }
   }
 
 
-  interface PopulateHtmlText {
-    void start(String content);
+  /**
+   * Measure the time from init() to the first intent or item sent to javascript.
+   */
+  private void recordFirstItem(final JSONObject message) {
+    if (initAt == 0 || initToFirstItem.get() >= 0) {
+      return;
+    }
+    final boolean hasItem = message.has("event")
+      ? "item".equals(message.optString("event"))
+      : message.optJSONArray("items") != null;
+    if (hasItem) {
+      final long elapsed = SystemClock.elapsedRealtime() - initAt;
+      if (initToFirstItem.compareAndSet(-1, elapsed)) {
+        log(INFO, () -> "Startup: first item sent " + elapsed + "ms after init()");
+      }
+    }
   }
 
-  @RequiresApi(api = Build.VERSION_CODES.N)
-  private void _asyncPopulateHtmlContentAndSend(String _url, PopulateHtmlText _startHtmlText) {
-    ExecutorService executor = Executors.newSingleThreadExecutor();
-
-    Future future = executor.submit(() -> {
-      HttpURLConnection urlConnection = null;
-      String htmlText = null;
-      try {
-        URL url = new URL(_url);
-
-
-        urlConnection = (HttpURLConnection) url
-          .openConnection();
-
-        InputStream in = urlConnection.getInputStream();
-
-        htmlText = new BufferedReader(
-          new InputStreamReader(in, StandardCharsets.UTF_8)).lines()
-          .collect(Collectors.joining("\n"));
-      } catch (IOException e) {
-        e.printStackTrace();
-      } finally {
-        if (urlConnection != null) {
-          urlConnection.disconnect();
+  /**
+   * Calls the javascript intent handlers with a multipart result: the intent,
+   * then the data of each of its items as an ArrayBuffer. Items get a
+   * "dataPart" index telling which part holds their data.
+   * <p>
+   * The complete event of a progressive delivery carries no data, its items
+   * were already sent with their item events.
+   */
+  private void sendBinaryToJavascript(final CallbackContext context, final JSONObject message) {
+    try {
+      final List<PluginResult> parts = new ArrayList<>();
+      parts.add(null);
+      final ShareBudget budget = new ShareBudget();
+      final JSONArray items = message.has("items") ? message.optJSONArray("items") : null;
+      if (items != null) {
+        for (int i = 0; i < items.length(); i++) {
+          attachBinaryData(items.optJSONObject(i), parts, budget);
         }
-        ;
-        _startHtmlText.start(htmlText);
+      } else if ("item".equals(message.optString("event"))) {
+        attachBinaryData(message.optJSONObject("item"), parts, budget);
       }
-      ;
-
+      final long start = PipelineStats.start();
+      parts.set(0, new PluginResult(PluginResult.Status.OK, message));
+      final PluginResult result = parts.size() == 1
+        ? parts.get(0)
+        : new PluginResult(PluginResult.Status.OK, parts);
+      result.setKeepCallback(true);
+      context.sendPluginResult(result);
+      PipelineStats.record(PipelineStats.Stage.DISPATCH, start, parts.get(0).getMessage().length());
+    } catch (Exception e) {
+      log(ERROR, () -> "sendBinaryToJavascript() - Error sending intent to JavaScript: " + e.getMessage());
+      // Sent again with the next drain, after the messages already handed to this thread
+      pendingIntents.putBack(message);
+    }
+  }
 
-    });
+  private void attachBinaryData(final JSONObject item, final List<PluginResult> parts, final ShareBudget budget)
+    throws JSONException {
+    // Other files are only described, their data is loaded on demand
+    if (item == null || item.has("data") || !item.has("handle") || item.has("downgraded")
+      || !"public.image".equals(item.optString("uti"))) {
+      return;
+    }
+    final String uri = ItemRegistry.resolve(item.getString("handle"));
+    if (uri == null) {
+      return;
+    }
+    final ContentResolver contentResolver = this.cordova
+      .getActivity().getApplicationContext().getContentResolver();
+    try {
+      final byte[] bytes = Serializer.getBytesFromURI(contentResolver, Uri.parse(uri), budget);
+      item.put("dataPart", parts.size());
+      parts.add(new PluginResult(PluginResult.Status.OK, bytes));
+    } catch (ShareBudget.ExceededException e) {
+      // Still loadable with its handle
+      item.put("downgraded", e.reason);
+    } catch (IOException e) {
+      log(WARN, () -> "attachBinaryData() - Cannot read " + uri + ": " + e.getMessage());
+    }
+  }
 
+  interface PopulateHtmlText {
+    void start(String content);
+  }
 
+  @RequiresApi(api = Build.VERSION_CODES.N)
+  private void _asyncPopulateHtmlContentAndSend(String _url, PopulateHtmlText _startHtmlText) {
+    final long start = PipelineStats.start();
+    // Ends on the fetcher thread, the trace shows it on the thread that waits for it
+    final ShareTracer.Span span = ShareTracer.span("populateHtmlContent", _url);
+    htmlFetcher.fetch(_url, (String content) -> {
+      PipelineStats.record(PipelineStats.Stage.HTML_FETCH, start, content != null ? content.length() : 0);
+      span.close();
+      _startHtmlText.start(content);
+    });
   }
 
   @RequiresApi(api = Build.VERSION_CODES.N)
@@ -478,6 +969,7 @@ public class OpenWithPlugin extends CordovaPlugin {
               if (content != null) {
                 try {
                   item.put("content", content);
+                  item.put("meta", HtmlMetaExtractor.parse(content));
                 } catch (JSONException e) {
                   e.printStackTrace();
                 }
@@ -500,11 +992,99 @@ public class OpenWithPlugin extends CordovaPlugin {
 
   }
 
+  /**
+   * Converts a share intent to JSON off the UI thread, sending the javascript
+   * handler a "session" event, then an "item" event as soon as each item is
+   * ready, then a "complete" event carrying the whole intent.
+   */
+  @RequiresApi(api = Build.VERSION_CODES.N)
+  private void streamInfoAndSend(final Intent intent) {
+    final Activity activity = this.cordova.getActivity();
+    final int session = sessionCount.incrementAndGet();
+    cordova.getThreadPool().execute(() -> {
+      try {
+        Serializer.streamIntent(activity, intent, new Serializer.ShareListener() {
+          @Override
+          public void onSession(final JSONObject header) throws JSONException {
+            header.put("event", "session");
+            header.put("session", session);
+            deliver(header);
+          }
+
+          @Override
+          public void onItem(final int index, final JSONObject item) throws JSONException {
+            if ("public.url".equals(item.optString("uti")) && item.has("url")) {
+              populateHtmlContent(item);
+            }
+            final JSONObject event = new JSONObject();
+            event.put("event", "item");
+            event.put("session", session);
+            event.put("index", index);
+            event.put("item", item);
+            deliver(event);
+          }
+
+          @Override
+          public void onComplete(final JSONObject complete) throws JSONException {
+            final JSONObject event = new JSONObject();
+            event.put("event", "complete");
+            event.put("session", session);
+            event.put("intent", complete);
+            deliver(event);
+          }
+        });
+      } catch (JSONException e) {
+        log(ERROR, () -> "streamInfoAndSend() - Error converting intent to JSON: " + e.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Adds the content of a shared URL to its item, waiting for the fetch to end.
+   */
+  @RequiresApi(api = Build.VERSION_CODES.N)
+  private void populateHtmlContent(final JSONObject item) throws JSONException {
+    final CountDownLatch fetched = new CountDownLatch(1);
+    this._asyncPopulateHtmlContentAndSend(item.getString("url"), (String content) -> {
+      if (content != null) {
+        try {
+          item.put("content", content);
+          item.put("meta", HtmlMetaExtractor.parse(content));
+        } catch (JSONException e) {
+          e.printStackTrace();
+        }
+      }
+      fetched.countDown();
+    });
+    try {
+      // The fetcher calls back by its own deadline, unless it is cancelled
+      fetched.await(ShareConfig.fetchTotalTimeout + 1000, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Reads the processed data written by IntentActivity, off the UI thread.
+   */
+  @RequiresApi(api = Build.VERSION_CODES.N)
+  private void populateHandoffAndSend(final String token, final IntentActivity.StartActivityFun startAction) {
+    final Context context = this.cordova.getActivity().getApplicationContext();
+    cordova.getThreadPool().execute(() -> {
+      try {
+        final JSONObject urlItem = HandoffStore.read(context, token);
+        this.populateHtmlContentAndSend(urlItem, startAction);
+      } catch (IOException | JSONException e) {
+        log(WARN, () -> "populateHandoffAndSend() - Cannot read handoff " + token + ": " + e.getMessage());
+      }
+    });
+  }
+
   /**
    * Converts an intent to JSON
    */
   private void populateInfoAndSend(final Intent intent, IntentActivity.StartActivityFun startAction) {
-    log(DEBUG, "populateInfoAndSend() called - action: " + intent.getAction());
+    log(DEBUG, () -> "populateInfoAndSend() called - action: " + intent.getAction());
     Bundle extras = intent.getExtras();
     try {
       if (extras != null && extras.get("json") != null) {
@@ -513,11 +1093,21 @@ public class OpenWithPlugin extends CordovaPlugin {
         this.populateHtmlContentAndSend(urlItem, startAction);
         return;
       }
+      if (extras != null && extras.get(HandoffStore.EXTRA_HANDOFF) != null) {
+        log(INFO, "populateInfoAndSend() - Found handoff file in extras (from IntentActivity)");
+        populateHandoffAndSend(extras.getString(HandoffStore.EXTRA_HANDOFF), startAction);
+        return;
+      }
+      if (ShareConfig.progressiveDelivery && Serializer.countItems(intent) > 0) {
+        log(INFO, "populateInfoAndSend() - No processed JSON found, streaming the share items");
+        streamInfoAndSend(intent);
+        return;
+      }
       log(INFO, "populateInfoAndSend() - No processed JSON found, calling Serializer.populateAndSendIntent()");
       Serializer.populateAndSendIntent(this.cordova.getActivity(), intent, startAction);
     } catch (JSONException e) {
-      log(ERROR, "populateInfoAndSend() - Error converting intent to JSON: " + e.getMessage());
-      log(ERROR, Arrays.toString(e.getStackTrace()));
+      log(ERROR, () -> "populateInfoAndSend() - Error converting intent to JSON: " + e.getMessage());
+      log(ERROR, () -> Arrays.toString(e.getStackTrace()));
     }
   }
 }
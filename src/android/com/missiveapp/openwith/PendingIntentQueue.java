@@ -0,0 +1,306 @@
+package com.missiveapp.openwith;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Intents (and progressive delivery events) waiting for the javascript handler.
+ * <p>
+ * Any thread may offer messages, without locking. The queue holds at most
+ * ShareConfig.pendingCapacity messages, what happens to the next ones is
+ * decided by ShareConfig.pendingOverflow:
+ * <ul>
+ *   <li>DROP_OLDEST: the oldest waiting message is dropped,</li>
+ *   <li>COALESCE: a message for the same share as one already waiting is
+ *   dropped, otherwise the oldest waiting message is,</li>
+ *   <li>REJECT: the message is refused, and the handler is later sent an
+ *   "error" event saying how many were.</li>
+ * </ul>
+ * The "session" and "complete" events of a progressive delivery are not
+ * dropped while other messages can be, so javascript never gets items
+ * without their session. When only those are left, the oldest session is
+ * dropped whole, with all its waiting events.
+ * <p>
+ * Only one thread drains the queue at a time, so each message is sent exactly
+ * once. A message the sink cannot send is put back in front of the queue.
+ */
+final class PendingIntentQueue {
+
+  /**
+   * What to do with a message offered to a full queue
+   */
+  enum Overflow {
+    DROP_OLDEST, COALESCE, REJECT;
+
+    /**
+     * Parse a preference value such as "drop-oldest", defaults to DROP_OLDEST.
+     */
+    static Overflow parse(final String value) {
+      if ("coalesce".equalsIgnoreCase(value)) {
+        return COALESCE;
+      }
+      if ("reject".equalsIgnoreCase(value)) {
+        return REJECT;
+      }
+      return DROP_OLDEST;
+    }
+  }
+
+  /**
+   * Where drained messages go
+   */
+  interface Sink {
+    /**
+     * @return false if the message could not be sent, it is then kept for the next drain
+     */
+    boolean send(JSONObject message);
+  }
+
+  /**
+   * Told about the messages the overflow policy drops or refuses, they will never be sent
+   */
+  interface Discarded {
+    void discarded(JSONObject message);
+  }
+
+  private static final class Entry {
+    final JSONObject message;
+    final String key;
+
+    /**
+     * The progressive delivery the message belongs to, -1 for a whole intent
+     */
+    final int session;
+
+    /**
+     * A "session" or "complete" event
+     */
+    final boolean bounds;
+
+    Entry(final JSONObject message, final String key) {
+      this.message = message;
+      this.key = key;
+      final String event = message.optString("event");
+      this.session = message.has("event") ? message.optInt("session", -1) : -1;
+      this.bounds = "session".equals(event) || "complete".equals(event);
+    }
+  }
+
+  /**
+   * Fields of an item telling what was shared, the data is left out
+   */
+  private static final String[] ITEM_REFERENCES = {"uri", "path", "url", "text", "type"};
+
+  private final ConcurrentLinkedDeque<Entry> queue = new ConcurrentLinkedDeque<>();
+
+  /**
+   * Slots taken in the queue, reserved before an entry is added
+   */
+  private final AtomicInteger size = new AtomicInteger();
+
+  private final AtomicInteger dropped = new AtomicInteger();
+
+  private final AtomicInteger rejected = new AtomicInteger();
+
+  private final AtomicBoolean draining = new AtomicBoolean(false);
+
+  /**
+   * A drain was asked for while another thread was draining
+   */
+  private final AtomicBoolean retry = new AtomicBoolean(false);
+
+  private final Discarded discarded;
+
+  PendingIntentQueue(final Discarded discarded) {
+    this.discarded = discarded;
+  }
+
+  /**
+   * Queue a message, applying the overflow policy when the queue is full.
+   *
+   * @return false if the message was dropped or refused
+   */
+  boolean offer(final JSONObject message) {
+    final int capacity = Math.max(1, ShareConfig.pendingCapacity);
+    final Overflow overflow = ShareConfig.pendingOverflow;
+    String key = null;
+    if (overflow == Overflow.COALESCE) {
+      key = keyOf(message);
+      for (Entry entry : queue) {
+        if (key.equals(entry.key)) {
+          dropped.incrementAndGet();
+          discarded.discarded(message);
+          return false;
+        }
+      }
+    }
+    while (true) {
+      final int taken = size.get();
+      if (taken < capacity) {
+        if (size.compareAndSet(taken, taken + 1)) {
+          queue.add(new Entry(message, key));
+          return true;
+        }
+      } else if (overflow == Overflow.REJECT) {
+        rejected.incrementAndGet();
+        discarded.discarded(message);
+        return false;
+      } else {
+        dropOldest();
+      }
+    }
+  }
+
+  /**
+   * Drop the oldest message that is not the start or end of a progressive
+   * delivery, or else the oldest delivery whole.
+   */
+  private void dropOldest() {
+    Entry oldest = null;
+    for (Entry entry : queue) {
+      if (oldest == null) {
+        oldest = entry;
+      }
+      if (!entry.bounds) {
+        remove(entry);
+        return;
+      }
+    }
+    if (oldest == null) {
+      return;
+    }
+    remove(oldest);
+    for (Entry entry : queue) {
+      if (oldest.session != -1 && entry.session == oldest.session) {
+        remove(entry);
+      }
+    }
+  }
+
+  private void remove(final Entry entry) {
+    // Another thread may have taken it meanwhile
+    if (queue.removeFirstOccurrence(entry)) {
+      size.decrementAndGet();
+      dropped.incrementAndGet();
+      discarded.discarded(entry.message);
+    }
+  }
+
+  /**
+   * What tells two messages for the same share apart, without the data of
+   * their items: the action and the references of its items. The journalId is
+   * left out, each delivery of a share gets its own. Events of a progressive
+   * delivery are only equal within the same session.
+   */
+  static String keyOf(final JSONObject message) {
+    if (message.has("event")) {
+      return message.optString("event") + ":" + message.optInt("session", -1) + ":" + message.optInt("index", -1);
+    }
+    final StringBuilder key = new StringBuilder(message.optString("action"));
+    final JSONArray items = message.optJSONArray("items");
+    if (items != null) {
+      for (int i = 0; i < items.length(); i++) {
+        final JSONObject item = items.optJSONObject(i);
+        if (item == null) {
+          continue;
+        }
+        for (String reference : ITEM_REFERENCES) {
+          key.append('|').append(item.optString(reference));
+        }
+      }
+    }
+    return key.toString();
+  }
+
+  /**
+   * Send all waiting messages, in order. Does nothing if another thread is
+   * already draining, that thread also sends the messages added meanwhile.
+   * Stops at the first message the sink cannot send, it stays first, unless
+   * another thread asked for a drain meanwhile (after setting the handler
+   * for instance), then the drain goes on.
+   */
+  void drain(final Sink sink) {
+    while (!queue.isEmpty() || rejected.get() > 0) {
+      if (!draining.compareAndSet(false, true)) {
+        retry.set(true);
+        if (draining.get()) {
+          return;
+        }
+        continue;
+      }
+      retry.set(false);
+      boolean sent = true;
+      try {
+        final int refused = rejected.getAndSet(0);
+        if (refused > 0 && !sink.send(overflowEvent(refused))) {
+          rejected.addAndGet(refused);
+          sent = false;
+        }
+        Entry entry;
+        while (sent && (entry = queue.pollFirst()) != null) {
+          size.decrementAndGet();
+          if (!sink.send(entry.message)) {
+            size.incrementAndGet();
+            queue.offerFirst(entry);
+            sent = false;
+          }
+        }
+      } finally {
+        draining.set(false);
+      }
+      if (!sent && !retry.get()) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Put a drained message that could not be sent back in front of the queue,
+   * whatever its capacity.
+   */
+  void putBack(final JSONObject message) {
+    size.incrementAndGet();
+    queue.offerFirst(new Entry(message, null));
+  }
+
+  /**
+   * Number of waiting messages.
+   */
+  int size() {
+    return Math.max(0, size.get());
+  }
+
+  /**
+   * Number of messages dropped by the overflow policy since the last call.
+   */
+  int takeDropped() {
+    return dropped.getAndSet(0);
+  }
+
+  /**
+   * Forget all waiting messages.
+   */
+  void clear() {
+    while (queue.poll() != null) {
+      size.decrementAndGet();
+    }
+    rejected.set(0);
+  }
+
+  private static JSONObject overflowEvent(final int refused) {
+    final JSONObject event = new JSONObject();
+    try {
+      event.put("event", "error");
+      event.put("error", "pending intent queue full");
+      event.put("rejected", refused);
+    } catch (JSONException e) {
+      e.printStackTrace();
+    }
+    return event;
+  }
+}
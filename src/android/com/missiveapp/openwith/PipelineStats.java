@@ -0,0 +1,241 @@
+package com.missiveapp.openwith;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counters and latency histograms of each stage of the share processing,
+ * reported by OpenWithPlugin.getStats().
+ * <p>
+ * Recording is lock free: a few atomic increments per call. Latencies are
+ * counted in buckets four per power of two of microseconds, so percentiles
+ * are within 25% of the actual value.
+ */
+final class PipelineStats {
+
+  /**
+   * Stages of the share processing, with the name they are reported under
+   */
+  enum Stage {
+    READ("read"),
+    BASE64("base64"),
+    PATH_INFO("pathInfo"),
+    QR("qr"),
+    HTML_FETCH("htmlFetch"),
+    HANDOFF("handoff"),
+    DISPATCH("dispatch");
+
+    final String label;
+
+    final Histogram histogram = new Histogram();
+
+    Stage(final String label) {
+      this.label = label;
+    }
+  }
+
+  private PipelineStats() {
+  }
+
+  /**
+   * Start timing, pass the result to record().
+   */
+  static long start() {
+    return System.nanoTime();
+  }
+
+  /**
+   * Record a call to a stage that started at start().
+   *
+   * @param bytes the bytes it processed, 0 if not applicable
+   */
+  static void record(final Stage stage, final long start, final long bytes) {
+    stage.histogram.add(System.nanoTime() - start, bytes);
+  }
+
+  /**
+   * Record a call to a stage that took a given time.
+   */
+  static void recordNanos(final Stage stage, final long nanos, final long bytes) {
+    stage.histogram.add(nanos, bytes);
+  }
+
+  /**
+   * The stats of each stage, as {count, bytes, totalMs, maxMs, p50, p95, p99}, in milliseconds.
+   */
+  static JSONObject toJson() throws JSONException {
+    final JSONObject stages = new JSONObject();
+    for (Stage stage : Stage.values()) {
+      stages.put(stage.label, stage.histogram.toJson());
+    }
+    return stages;
+  }
+
+  /**
+   * Forget what was recorded so far.
+   */
+  static void reset() {
+    for (Stage stage : Stage.values()) {
+      stage.histogram.reset();
+    }
+  }
+
+  /**
+   * Counts of the latencies of a stage.
+   */
+  static final class Histogram {
+
+    private static final int SUB_BUCKETS = 4;
+
+    private static final int BUCKETS = 160;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void add(final long nanos, final long size) {
+      final long elapsed = Math.max(0, nanos);
+      buckets.incrementAndGet(bucketOf(elapsed / 1000));
+      count.incrementAndGet();
+      if (size > 0) {
+        bytes.addAndGet(size);
+      }
+      totalNanos.addAndGet(elapsed);
+      long max = maxNanos.get();
+      while (elapsed > max && !maxNanos.compareAndSet(max, elapsed)) {
+        max = maxNanos.get();
+      }
+    }
+
+    void reset() {
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets.set(i, 0);
+      }
+      count.set(0);
+      bytes.set(0);
+      totalNanos.set(0);
+      maxNanos.set(0);
+    }
+
+    JSONObject toJson() throws JSONException {
+      final long[] counts = new long[BUCKETS];
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        counts[i] = buckets.get(i);
+        total += counts[i];
+      }
+      final JSONObject json = new JSONObject();
+      json.put("count", count.get());
+      json.put("bytes", bytes.get());
+      json.put("totalMs", millis(totalNanos.get()));
+      json.put("maxMs", millis(maxNanos.get()));
+      json.put("p50", percentile(counts, total, 0.50));
+      json.put("p95", percentile(counts, total, 0.95));
+      json.put("p99", percentile(counts, total, 0.99));
+      return json;
+    }
+
+    /**
+     * The upper bound of the bucket holding the given fraction of the calls, in milliseconds.
+     */
+    private static double percentile(final long[] counts, final long total, final double fraction) {
+      if (total == 0) {
+        return 0;
+      }
+      final long rank = Math.max(1, (long) Math.ceil(total * fraction));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return upperBoundOf(i) / 1000.0;
+        }
+      }
+      return upperBoundOf(counts.length - 1) / 1000.0;
+    }
+
+    /**
+     * Values under 4 have a bucket each, then each power of two is split in 4.
+     */
+    static int bucketOf(final long micros) {
+      if (micros < SUB_BUCKETS) {
+        return (int) micros;
+      }
+      final int log = 63 - Long.numberOfLeadingZeros(micros);
+      final int sub = (int) (micros >>> (log - 2)) & (SUB_BUCKETS - 1);
+      return Math.min(BUCKETS - 1, SUB_BUCKETS + (log - 2) * SUB_BUCKETS + sub);
+    }
+
+    /**
+     * The smallest value, in microseconds, above the bucket.
+     */
+    static long upperBoundOf(final int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket + 1;
+      }
+      final int log = (bucket - SUB_BUCKETS) / SUB_BUCKETS + 2;
+      final int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+      return (long) (SUB_BUCKETS + sub + 1) << (log - 2);
+    }
+
+    private static double millis(final long nanos) {
+      return nanos / 1000 / 1000.0;
+    }
+  }
+
+  /**
+   * Counts the time spent waiting for an input stream, to tell reading from
+   * what is done with the bytes.
+   */
+  static final class TimedInputStream extends FilterInputStream {
+
+    private long nanos = 0;
+
+    private long bytes = 0;
+
+    TimedInputStream(final InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      final long start = System.nanoTime();
+      final int b = super.read();
+      nanos += System.nanoTime() - start;
+      if (b != -1) {
+        bytes++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      final long start = System.nanoTime();
+      final int r = super.read(b, off, len);
+      nanos += System.nanoTime() - start;
+      if (r > 0) {
+        bytes += r;
+      }
+      return r;
+    }
+
+    long nanos() {
+      return nanos;
+    }
+
+    long bytes() {
+      return bytes;
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package com.missiveapp.openwith;
+
+/**
+ * The overlapping tiles an image is scanned in for QR codes when the whole
+ * image scan found none, and the sample size they are decoded at.
+ * <p>
+ * Tiles are decoded at twice the resolution of the last whole image scan,
+ * on the coarsest grid that keeps every decoded tile within the QR scan size
+ * limit, so a tile never takes more memory than the largest whole image scan.
+ * Free of the Android framework, see BitmapSampler.tiles().
+ */
+final class QrTiling {
+
+  /**
+   * Finest grid, in tiles per side
+   */
+  static final int MAX_GRID = 6;
+
+  /**
+   * Tiles per side
+   */
+  final int grid;
+
+  /**
+   * inSampleSize the tiles are decoded at
+   */
+  final int sampleSize;
+
+  private QrTiling(final int grid, final int sampleSize) {
+    this.grid = grid;
+    this.sampleSize = sampleSize;
+  }
+
+  /**
+   * Plan the tile scan following a whole image scan at the given sample size.
+   *
+   * @param maxSize longest side, in pixels, a tile may be decoded at
+   * @return null if the image was already scanned at full resolution, or no
+   * grid up to MAX_GRID keeps the tiles within maxSize
+   */
+  static QrTiling plan(final int width, final int height, final int sampleSize, final int maxSize) {
+    if (sampleSize < 2 || width <= 0 || height <= 0) {
+      return null;
+    }
+    final int tileSampleSize = sampleSize / 2;
+    for (int grid = 2; grid <= MAX_GRID; grid++) {
+      if (decodedSize(largestSide(width, height, grid), tileSampleSize) <= maxSize) {
+        return new QrTiling(grid, tileSampleSize);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Split an image in a grid of overlapping tiles, so that a code cut by a
+   * tile border is still whole in a neighbour tile.
+   *
+   * @return the {left, top, right, bottom} of each tile, row by row
+   */
+  static int[][] tiles(final int width, final int height, final int grid) {
+    final int[][] tiles = new int[grid * grid][];
+    final int tileWidth = width / grid;
+    final int tileHeight = height / grid;
+    final int overlapX = tileWidth / 4;
+    final int overlapY = tileHeight / 4;
+    for (int row = 0; row < grid; row++) {
+      for (int col = 0; col < grid; col++) {
+        tiles[row * grid + col] = new int[] {
+          Math.max(0, col * tileWidth - overlapX),
+          Math.max(0, row * tileHeight - overlapY),
+          Math.min(width, (col + 1) * tileWidth + overlapX),
+          Math.min(height, (row + 1) * tileHeight + overlapY)};
+      }
+    }
+    return tiles;
+  }
+
+  /**
+   * Longest side of the largest tile, in pixels of the image.
+   */
+  static int largestSide(final int width, final int height, final int grid) {
+    int largest = 0;
+    for (int[] tile : tiles(width, height, grid)) {
+      largest = Math.max(largest, Math.max(tile[2] - tile[0], tile[3] - tile[1]));
+    }
+    return largest;
+  }
+
+  /**
+   * Size of a side once decoded at a sample size, rounded up.
+   */
+  static int decodedSize(final int side, final int sampleSize) {
+    return (side + sampleSize - 1) / sampleSize;
+  }
+}
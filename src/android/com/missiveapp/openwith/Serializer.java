@@ -5,17 +5,20 @@ import android.content.ClipData;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.StrictMode;
+import android.os.SystemClock;
 import android.provider.MediaStore;
+import android.provider.OpenableColumns;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
-import android.util.Base64;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -25,6 +28,7 @@ import com.google.android.gms.vision.barcode.Barcode;
 import com.google.android.gms.vision.barcode.BarcodeDetector;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -33,12 +37,19 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import org.apache.cordova.CordovaInterface;
@@ -52,8 +63,6 @@ import org.json.JSONObject;
  */
 class Serializer {
 
-  static final int MAX_ITEMS = 5;
-
   public interface PopulateItemsAndSendIntent {
     void start(JSONArray items);
   }
@@ -75,17 +84,9 @@ class Serializer {
 //    final ContentResolver contentResolver = activity.getContentResolver();
 //    StringBuilder text = new StringBuilder();
     PopulateItemsAndSendIntent sendIntent = (JSONArray items) -> {
-      final JSONObject action = new JSONObject();
-
       try {
-        action.put("action", translateAction(intent.getAction()));
-        action.put("exit", readExitOnSent(intent.getExtras()));
-        action.put("items", items);
-        String text = intent.getStringExtra(Intent.EXTRA_TEXT);
-        if (text != null) {
-          action.put("text", text);
-        }
-        startActivityFun.start(action);
+        startActivityFun.start(ShareJson.intent(intent.getAction(),
+          readExitOnSent(intent.getExtras()), items, intent.getStringExtra(Intent.EXTRA_TEXT)));
       } catch (JSONException e) {
         e.printStackTrace();
       }
@@ -96,14 +97,91 @@ class Serializer {
 
   }
 
-  public static String translateAction(final String action) {
-    if ("android.intent.action.SEND".equals(action) ||
-      "android.intent.action.SEND_MULTIPLE".equals(action)) {
-      return "SEND";
-    } else if ("android.intent.action.VIEW".equals(action)) {
-      return "VIEW";
+  /**
+   * Receives a share as its items are processed, see streamIntent().
+   */
+  public interface ShareListener {
+    /**
+     * Called first, with the action, exit, text and expected item count of the share.
+     */
+    void onSession(JSONObject session) throws JSONException;
+
+    /**
+     * Called for each item as soon as it is ready, in the order of the share.
+     */
+    void onItem(int index, JSONObject item) throws JSONException;
+
+    /**
+     * Called last, with the same intent populateAndSendIntent() would send.
+     */
+    void onComplete(JSONObject intent) throws JSONException;
+  }
+
+  /**
+   * Convert an intent to JSON, reporting each item as soon as it is ready
+   * instead of waiting for the whole share.
+   */
+  @RequiresApi(api = Build.VERSION_CODES.N)
+  public static void streamIntent(
+    final Activity activity,
+    final Intent intent,
+    final ShareListener listener
+  ) throws JSONException {
+    final String text = intent.getStringExtra(Intent.EXTRA_TEXT);
+    final boolean exit = readExitOnSent(intent.getExtras());
+    final JSONObject session = new JSONObject();
+    session.put("action", translateAction(intent.getAction()));
+    session.put("exit", exit);
+    if (text != null) {
+      session.put("text", text);
+    }
+    session.put("count", countItems(intent));
+    listener.onSession(session);
+
+    final String action = intent.getAction();
+    final String type = intent.getType();
+    JSONArray items = null;
+    if (Intent.ACTION_SEND.equals(action) && type != null) {
+      if (isSharedText(intent, type)) {
+        final JSONArray[] urlItems = new JSONArray[1];
+        handleUrlAndSend(activity, intent, (JSONArray sent) -> urlItems[0] = sent);
+        items = urlItems[0];
+      } else {
+        items = handleSendStream(activity, intent, type);
+      }
+      if (items != null && items.length() > 0) {
+        listener.onItem(0, items.getJSONObject(0));
+      }
+    } else if (Intent.ACTION_SEND_MULTIPLE.equals(action) && type != null) {
+      items = handleSendMultipleStreams(activity, type, intent, listener);
     }
-    return action;
+
+    listener.onComplete(ShareJson.intent(action, exit, items, text));
+  }
+
+  /**
+   * Number of items a share is expected to produce, 0 if it is not one.
+   */
+  public static int countItems(final Intent intent) {
+    final String action = intent.getAction();
+    final String type = intent.getType();
+    if (type == null) {
+      return 0;
+    }
+    if (Intent.ACTION_SEND.equals(action)) {
+      if (isSharedText(intent, type)) {
+        return 1;
+      }
+      return intent.getParcelableExtra(Intent.EXTRA_STREAM) != null ? 1 : 0;
+    } else if (Intent.ACTION_SEND_MULTIPLE.equals(action)) {
+      final ArrayList<Uri> uris = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+      return uris == null ? 0 : Math.min(uris.size(), ShareBudget.maxItems());
+    }
+    return 0;
+  }
+
+  public static String translateAction(final String action) {
+    return ShareJson.translateAction(action);
   }
 
   /**
@@ -124,24 +202,29 @@ class Serializer {
     String type = intent.getType();
 
     if (Intent.ACTION_SEND.equals(action) && type != null) {
-      if ("text/plain".equals(type)) {
+      if (isSharedText(intent, type)) {
         handleUrlAndSend(activity, intent, sendIntent);
         return;
-      } else if (type.startsWith("image/")) {
-        JSONArray items = handleSendImage(activity, intent, type); // Handle single image being sent
+      } else {
+        JSONArray items = handleSendStream(activity, intent, type); // Handle single image or file being sent
         sendIntent.start(items);
         return;
       }
     } else if (Intent.ACTION_SEND_MULTIPLE.equals(action) && type != null) {
-      if (type.startsWith("image/")) {
-        JSONArray items = handleSendMultipleImages(activity, type, intent); // Handle multiple images being sent
-        sendIntent.start(items);
-        return;
-      }
+      JSONArray items = handleSendMultipleStreams(activity, type, intent); // Handle multiple images or files being sent
+      sendIntent.start(items);
+      return;
     }
 //        return null;
   }
 
+  /**
+   * Whether a share is text (a URL generally), rather than a text file.
+   */
+  private static boolean isSharedText(final Intent intent, final String type) {
+    return "text/plain".equals(type) && intent.getParcelableExtra(Intent.EXTRA_STREAM) == null;
+  }
+
 //  public interface PopulateHtmlTextAndSendIntent {
 //    void start(String htmltext);
 //    }
@@ -176,16 +259,10 @@ class Serializer {
       urlItem.put("title", subject);
       urlItem.put("uti", "public.url");
       if (screenshotUri!=null){
-        final String dataFromURI = getDataFromURI(activity.getContentResolver(), screenshotUri);
-        urlItem.put("base64", dataFromURI);
-        urlItem.put("imageType", "image/jpeg");
+        populateScreenshot(urlItem, activity, screenshotUri);
       }
       items.put(urlItem);
 
-      if (screenshotUri!=null){
-        decodeQRFromPreviewUri(urlItem, activity, screenshotUri);
-      }
-
       _sendIntent.start((items));
     } catch (JSONException e) {
       e.printStackTrace();
@@ -193,12 +270,55 @@ class Serializer {
 
   }
 
-  static JSONArray handleSendImage(Activity activity, Intent intent, String type) {
+  /**
+   * Buffers holding browser screenshots while they are encoded and scanned
+   */
+  private static final ThreadLocal<ByteStreams.ReusableBuffer> screenshotBuffer =
+    new ThreadLocal<ByteStreams.ReusableBuffer>() {
+      @Override
+      protected ByteStreams.ReusableBuffer initialValue() {
+        return new ByteStreams.ReusableBuffer(4 * 1024 * 1024);
+      }
+    };
+
+  /**
+   * Add the browser screenshot as "base64" and scan it for QR codes.
+   * <p>
+   * The screenshot is read from its content provider once; both the base64
+   * encoder and the bitmap decoder are fed from the same buffer.
+   */
+  static void populateScreenshot(JSONObject urlItem, Activity activity, Uri screenshotUri)
+    throws JSONException {
+    final ByteStreams.ReusableBuffer buffer = screenshotBuffer.get();
+    try {
+      final ContentResolver contentResolver = activity.getContentResolver();
+      final AssetFileDescriptor afd = openAssetFile(contentResolver, screenshotUri);
+      try (InputStream inputStream = afd != null
+        ? afd.createInputStream()
+        : contentResolver.openInputStream(screenshotUri)) {
+        if (inputStream == null) {
+          throw new IOException("Cannot open " + screenshotUri);
+        }
+        buffer.readFrom(inputStream, afd != null ? afd.getLength() : -1);
+      }
+      urlItem.put("base64", Base64Streams.encode(buffer.bytes(), 0, buffer.length()));
+      urlItem.put("imageType", "image/jpeg");
+      _decodeQR(urlItem, activity,
+        () -> new ByteArrayInputStream(buffer.bytes(), 0, buffer.length()));
+    } catch (IOException e) {
+      urlItem.put("base64", "");
+      urlItem.put("imageType", "image/jpeg");
+    } finally {
+      buffer.release();
+    }
+  }
+
+  static JSONArray handleSendStream(Activity activity, Intent intent, String type) {
     Uri imageUri = (Uri) intent.getParcelableExtra(Intent.EXTRA_STREAM);
     if (imageUri != null) {
       JSONObject[] items = new JSONObject[1];
       try {
-        items[0] = imgToJson(activity, type, imageUri);
+        items[0] = itemToJson(activity, type, imageUri, new ShareBudget());
         return new JSONArray(items);
       } catch (Exception e) {
         return null;
@@ -208,18 +328,97 @@ class Serializer {
   }
 
 
-  static JSONArray handleSendMultipleImages(Activity activity, String type, Intent intent) {
+  /**
+   * Pool processing the items of multiple shares, see getItemExecutor()
+   */
+  private static ThreadPoolExecutor itemExecutor;
+
+  /**
+   * Return the pool processing shared items, sized to ShareConfig.itemParallelism.
+   * <p>
+   * Threads are only kept alive for a little while after a share.
+   */
+  static synchronized ExecutorService getItemExecutor() {
+    final int parallelism = ShareConfig.itemParallelism;
+    if (itemExecutor == null) {
+      final AtomicInteger threadCount = new AtomicInteger();
+      itemExecutor = new ThreadPoolExecutor(
+        parallelism, parallelism, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        (Runnable runnable) -> {
+          final Thread thread = new Thread(runnable, "openwith-item-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+      itemExecutor.allowCoreThreadTimeOut(true);
+    } else if (parallelism > itemExecutor.getMaximumPoolSize()) {
+      itemExecutor.setMaximumPoolSize(parallelism);
+      itemExecutor.setCorePoolSize(parallelism);
+    } else if (parallelism < itemExecutor.getMaximumPoolSize()) {
+      itemExecutor.setCorePoolSize(parallelism);
+      itemExecutor.setMaximumPoolSize(parallelism);
+    }
+    return itemExecutor;
+  }
+
+  /**
+   * Convert the shared images and files to JSON, several at a time.
+   * <p>
+   * Items keep the order they were shared in. Like a sequential loop, the first
+   * ShareBudget.maxItems() items that could be read are kept: an item is only
+   * submitted when it may still make the cut, so a failure lets the next item in.
+   * Items beyond the byte or time budget of the share are downgraded.
+   */
+  static JSONArray handleSendMultipleStreams(Activity activity, String type, Intent intent) {
+    return handleSendMultipleStreams(activity, type, intent, null);
+  }
+
+  /**
+   * Convert the shared images and files to JSON, reporting each one to the listener
+   * (if any) as soon as it and the ones before it are ready.
+   */
+  static JSONArray handleSendMultipleStreams(
+    Activity activity, String type, Intent intent, @Nullable ShareListener listener) {
     ArrayList<Uri> imageUris = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
     List<JSONObject> items = new LinkedList<>();
     if (imageUris != null) {
-      for (Uri uri : imageUris) {
-        try {
-          items.add(imgToJson(activity, type, uri));
-          if (items.size() == MAX_ITEMS) {
+      final ExecutorService executor = getItemExecutor();
+      final ArrayDeque<Future<JSONObject>> inFlight = new ArrayDeque<>();
+      final ShareBudget budget = new ShareBudget();
+      final int maxItems = budget.getMaxItems();
+      int next = 0;
+      try {
+        while (items.size() < maxItems) {
+          while (next < imageUris.size() && items.size() + inFlight.size() < maxItems) {
+            final Uri uri = imageUris.get(next++);
+            final int index = next - 1;
+            inFlight.add(executor.submit(() -> {
+              try (ShareTracer.Span span = ShareTracer.span("item " + index, uri.toString())) {
+                return itemToJson(activity, type, uri, budget);
+              }
+            }));
+          }
+          final Future<JSONObject> future = inFlight.poll();
+          if (future == null) {
             break;
           }
-        } catch (Exception e) {
-          // Do nothing here
+          try {
+            final JSONObject item = future.get();
+            items.add(item);
+            if (listener != null) {
+              listener.onItem(items.size() - 1, item);
+            }
+          } catch (ExecutionException e) {
+            // Do nothing here, the next image gets a chance
+          } catch (JSONException e) {
+            e.printStackTrace();
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        for (Future<JSONObject> future : inFlight) {
+          future.cancel(true);
         }
       }
     }
@@ -230,17 +429,190 @@ class Serializer {
     }
   }
 
+  /**
+   * Convert a shared image or file to JSON. Images are read and scanned,
+   * other files are only described, see fileToJson().
+   *
+   * @param type the type of the share, the type of the item is asked to the provider unless it is an image type
+   */
+  private static JSONObject itemToJson(Activity activity, String type, Uri uri, ShareBudget budget)
+    throws Exception {
+    if (type.startsWith("image/")) {
+      return imgToJson(activity, type, uri, budget);
+    }
+    final ContentResolver contentResolver = activity.getContentResolver();
+    final String itemType = contentResolver.getType(uri);
+    if (itemType != null && itemType.startsWith("image/")) {
+      return imgToJson(activity, itemType, uri, budget);
+    }
+    return fileToJson(contentResolver, itemType != null ? itemType : type, uri);
+  }
+
+  /**
+   * Describe a shared file of any type without reading its content: its
+   * type, name and size from OpenableColumns, and a handle to read it with
+   * OpenWithPlugin.load(), or stat() and loadChunk() when it is large.
+   */
+  static JSONObject fileToJson(
+    final ContentResolver contentResolver,
+    final String type,
+    final Uri uri)
+    throws JSONException {
+    final JSONObject json = new JSONObject();
+    json.put("type", type);
+    json.put("uti", ShareJson.utiFor(type));
+    json.put("uri", uri.toString());
+    json.put("handle", ItemRegistry.register(uri.toString()));
+    long size = -1;
+    final String[] proj = {OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+    try (Cursor cursor = contentResolver.query(uri, proj, null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        final int nameIndex = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+        if (nameIndex >= 0 && !cursor.isNull(nameIndex)) {
+          json.put("name", cursor.getString(nameIndex));
+        }
+        final int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+        if (sizeIndex >= 0 && !cursor.isNull(sizeIndex)) {
+          size = cursor.getLong(sizeIndex);
+        }
+      }
+    } catch (RuntimeException e) {
+      // Some providers throw on unknown columns, fall through
+    }
+    json.put("size", size >= 0 ? size : getSizeFromURI(contentResolver, uri));
+    return json;
+  }
+
   @Nullable
-  private static JSONObject imgToJson(Activity activity, String type, Uri imageUri) throws Exception {
-    JSONObject items = new JSONObject();
-    items.put("type", type);
-    items.put("uti", "public.image");
-    populatePathInfo(items, activity.getContentResolver(), imageUri);
-    items.put("data", getDataFromURI(activity.getContentResolver(), imageUri));
-    decodeQR(items, activity, imageUri);
+  private static JSONObject imgToJson(Activity activity, String type, Uri imageUri, ShareBudget budget)
+    throws Exception {
+    final ContentResolver contentResolver = activity.getContentResolver();
+    try {
+      budget.checkTime();
+    } catch (ShareBudget.ExceededException e) {
+      // No time left for the share, not even to scan the image
+      final JSONObject reference = new JSONObject();
+      populatePathInfo(reference, contentResolver, imageUri);
+      ShareJson.describeImage(reference, type);
+      populateLazyInfo(reference, contentResolver, imageUri);
+      reference.put("downgraded", e.reason);
+      return reference;
+    }
+    final ItemCache cache = ItemCache.get(activity);
+    final String key = cache != null ? cache.keyFor(contentResolver, imageUri) : null;
+    JSONObject items = key != null ? cache.getArtifacts(key) : null;
+    if (items == null) {
+      items = new JSONObject();
+      populatePathInfo(items, contentResolver, imageUri);
+      populateDimensions(items, contentResolver, imageUri);
+      if (ShareConfig.thumbnailSizes.length > 0 && items.has("width")) {
+        populateThumbnails(items, contentResolver, imageUri);
+      }
+      decodeQR(items, activity, imageUri);
+      if (key != null) {
+        cache.putArtifacts(key, items);
+      }
+    }
+    ShareJson.describeImage(items, type);
+    if (ShareConfig.lazyPayload || ShareConfig.binaryTransfer) {
+      // In binary mode, the plugin attaches the data when it sends the item
+      populateLazyInfo(items, contentResolver, imageUri);
+    } else {
+      try {
+        String data = key != null ? cache.getPayload(key) : null;
+        if (data != null) {
+          budget.reserve(data.length() / 4 * 3);
+        } else {
+          data = getDataFromURI(contentResolver, imageUri, budget);
+          if (key != null) {
+            cache.putPayload(key, data);
+          }
+        }
+        // The Uri lets the journal read the data again when the intent is replayed
+        ShareJson.attachData(items, imageUri.toString(), data);
+      } catch (ShareBudget.ExceededException e) {
+        downgrade(items, contentResolver, imageUri, e.reason);
+      }
+    }
     return items;
   }
 
+  /**
+   * Send an item that does not fit the budget of its share without its data:
+   * as a reference to load later, with previews in DOWNGRADE_THUMBNAIL mode.
+   */
+  private static void downgrade(
+    final JSONObject json,
+    final ContentResolver contentResolver,
+    final Uri uri,
+    final String reason)
+    throws JSONException {
+    if (ShareBudget.DOWNGRADE_THUMBNAIL.equals(ShareBudget.downgrade())
+      && !"time".equals(reason) && !json.has("thumbnails") && json.has("width")) {
+      populateThumbnails(json, contentResolver, uri, ShareBudget.DOWNGRADE_THUMBNAIL_SIZES);
+    }
+    populateLazyInfo(json, contentResolver, uri);
+    json.put("downgraded", reason);
+  }
+
+  /**
+   * Describe an image without its data: its size and a handle to load the
+   * data later with OpenWithPlugin.load().
+   */
+  static void populateLazyInfo(
+    final JSONObject json,
+    final ContentResolver contentResolver,
+    final Uri uri)
+    throws JSONException {
+    json.put("uri", uri.toString());
+    json.put("handle", ItemRegistry.register(uri.toString()));
+    json.put("size", getSizeFromURI(contentResolver, uri));
+  }
+
+  /**
+   * Add previews of an image, see Thumbnails.
+   */
+  static void populateThumbnails(
+    final JSONObject json,
+    final ContentResolver contentResolver,
+    final Uri uri)
+    throws JSONException {
+    populateThumbnails(json, contentResolver, uri, ShareConfig.thumbnailSizes);
+  }
+
+  static void populateThumbnails(
+    final JSONObject json,
+    final ContentResolver contentResolver,
+    final Uri uri,
+    final int[] sizes)
+    throws JSONException {
+    try {
+      json.put("thumbnails", Thumbnails.create(() -> contentResolver.openInputStream(uri),
+        json.getInt("width"), json.getInt("height"), sizes));
+    } catch (IOException | RuntimeException e) {
+      // Previews are optional
+    }
+  }
+
+  /**
+   * Add the width and height of an image, read from its header only.
+   */
+  static void populateDimensions(
+    final JSONObject json,
+    final ContentResolver contentResolver,
+    final Uri uri)
+    throws JSONException {
+    try {
+      final BitmapFactory.Options bounds = BitmapSampler.readBounds(() -> contentResolver.openInputStream(uri));
+      if (bounds.outWidth > 0 && bounds.outHeight > 0) {
+        json.put("width", bounds.outWidth);
+        json.put("height", bounds.outHeight);
+      }
+    } catch (IOException e) {
+      // Dimensions are optional
+    }
+  }
+
 
   /**
    * Extract the list of items from clip data (if available).
@@ -252,7 +624,7 @@ class Serializer {
     final ClipData clipData)
     throws JSONException {
     if (clipData != null) {
-      final int clipItemCount = Math.max(MAX_ITEMS, clipData.getItemCount());
+      final int clipItemCount = Math.min(ShareBudget.maxItems(), clipData.getItemCount());
       JSONObject[] items = new JSONObject[clipItemCount];
       for (int i = 0; i < clipItemCount; i++) {
         items[i] = toJSONObject(contentResolver, clipData.getItemAt(i).getUri());
@@ -311,93 +683,340 @@ class Serializer {
   }
 
   /**
-   * Return data contained at a given Uri as Base64. Defaults to null.
+   * Return data contained at a given Uri as Base64. Defaults to "".
+   * <p>
+   * The content is encoded while it is read, into a buffer sized from the
+   * file descriptor length when the provider knows it.
    */
   public static String getDataFromURI(
     final ContentResolver contentResolver,
     final Uri uri) {
-    InputStream inputStream = null;// = contentResolver.openInputStream(uri);
+    try {
+      return getDataFromURI(contentResolver, uri, null);
+    } catch (ShareBudget.ExceededException e) {
+      // Not without a budget
+      return "";
+    }
+  }
 
+  /**
+   * Return data contained at a given Uri as Base64, charging it to the budget
+   * of a share. Defaults to "".
+   *
+   * @throws ShareBudget.ExceededException if the data does not fit the budget
+   */
+  static String getDataFromURI(
+    final ContentResolver contentResolver,
+    final Uri uri,
+    @Nullable final ShareBudget budget)
+    throws ShareBudget.ExceededException {
+    InputStream inputStream = null;
+    long size = -1;
     try {
-      inputStream = contentResolver.openInputStream(uri);
-      final byte[] bytes = ByteStreams.toByteArray(inputStream);
-      inputStream.close();
-      return Base64.encodeToString(bytes, Base64.DEFAULT);
+      final AssetFileDescriptor afd = openAssetFile(contentResolver, uri);
+      if (afd != null) {
+        size = afd.getLength();
+        inputStream = afd.createInputStream();
+      } else {
+        inputStream = contentResolver.openInputStream(uri);
+      }
+      if (inputStream == null) {
+        return "";
+      }
+      if (budget != null) {
+        inputStream = budget.track(inputStream, size);
+      }
+      final long start = PipelineStats.start();
+      final PipelineStats.TimedInputStream timed = new PipelineStats.TimedInputStream(inputStream);
+      final String data = Base64Streams.encode(timed, size);
+      final long elapsed = System.nanoTime() - start;
+      PipelineStats.recordNanos(PipelineStats.Stage.READ, timed.nanos(), timed.bytes());
+      PipelineStats.recordNanos(PipelineStats.Stage.BASE64, elapsed - timed.nanos(), data.length());
+      return data;
+    } catch (ShareBudget.ExceededException e) {
+      throw e;
     } catch (IOException e) {
       return "";
+    } finally {
+      if (inputStream != null) {
+        try {
+          inputStream.close();
+        } catch (IOException e) {
+          // Nothing more to do
+        }
+      }
     }
   }
 
-  interface BitmapResolver {
-    Bitmap start(ContentResolver resolver, Uri uri) throws IOException;
+  /**
+   * Return the data contained at a given Uri, as is.
+   * <p>
+   * The array is sized from the file descriptor length when the provider
+   * knows it, so the content is read without intermediate copies.
+   *
+   * @throws IOException if the content cannot be read
+   */
+  public static byte[] getBytesFromURI(
+    final ContentResolver contentResolver,
+    final Uri uri)
+    throws IOException {
+    return getBytesFromURI(contentResolver, uri, null);
   }
 
-  protected static void decodeQR(JSONObject json, final Activity activity, Uri imageUri) {
-    BitmapResolver bitmapResover = MediaStore.Images.Media::getBitmap;
-    _decodeQR(json, activity, imageUri, bitmapResover);
+  /**
+   * Return the data contained at a given Uri, as is, charging it to the
+   * budget of a share.
+   *
+   * @throws ShareBudget.ExceededException if the data does not fit the budget
+   * @throws IOException                   if the content cannot be read
+   */
+  static byte[] getBytesFromURI(
+    final ContentResolver contentResolver,
+    final Uri uri,
+    @Nullable final ShareBudget budget)
+    throws IOException {
+    final long start = PipelineStats.start();
+    final byte[] bytes = readBytes(contentResolver, uri, budget);
+    PipelineStats.record(PipelineStats.Stage.READ, start, bytes.length);
+    return bytes;
   }
 
-  protected static void decodeQRFromPreviewUri(JSONObject json, final Activity activity, Uri previewUri) {
-    BitmapResolver bitmapResolver = (ContentResolver contentResolver, Uri uri) -> {
-      BitmapFactory.Options bitmapOptions = new BitmapFactory.Options();
-      final InputStream input = contentResolver.openInputStream(uri);
-      Bitmap bitmap = BitmapFactory.decodeStream(input, null, bitmapOptions);
-      input.close();
-      return bitmap;
-    };
-    _decodeQR(json, activity, previewUri, bitmapResolver);
+  private static byte[] readBytes(
+    final ContentResolver contentResolver,
+    final Uri uri,
+    @Nullable final ShareBudget budget)
+    throws IOException {
+    final AssetFileDescriptor afd = openAssetFile(contentResolver, uri);
+    try (InputStream opened = afd != null
+      ? afd.createInputStream()
+      : contentResolver.openInputStream(uri)) {
+      if (opened == null) {
+        throw new IOException("Cannot open " + uri);
+      }
+      final long size = afd != null ? afd.getLength() : -1;
+      final InputStream inputStream = budget != null ? budget.track(opened, size) : opened;
+      if (size >= 0 && size < Integer.MAX_VALUE) {
+        final byte[] bytes = ByteStreams.readUpTo(inputStream, (int) size);
+        final int next = inputStream.read();
+        if (next == -1) {
+          return bytes;
+        }
+        // The declared length was wrong, read the rest
+        final byte[] rest = ByteStreams.toByteArray(inputStream);
+        final byte[] all = Arrays.copyOf(bytes, bytes.length + 1 + rest.length);
+        all[bytes.length] = (byte) next;
+        System.arraycopy(rest, 0, all, bytes.length + 1, rest.length);
+        return all;
+      }
+      return ByteStreams.toByteArray(inputStream);
+    }
+  }
+
+  /**
+   * Open the data at a given Uri as an asset file descriptor, which gives
+   * its length and allows seeking. Defaults to null.
+   */
+  private static AssetFileDescriptor openAssetFile(
+    final ContentResolver contentResolver,
+    final Uri uri) {
+    try {
+      return contentResolver.openAssetFileDescriptor(uri, "r");
+    } catch (IOException | RuntimeException e) {
+      // Not backed by a file descriptor
+      return null;
+    }
+  }
+
+  /**
+   * Return the size in bytes of the data at a given Uri. Defaults to -1 when
+   * the provider does not know it.
+   * <p>
+   * The OpenableColumns.SIZE column is tried first since it does not require
+   * opening the content, then the length of the asset file descriptor.
+   */
+  public static long getSizeFromURI(
+    final ContentResolver contentResolver,
+    final Uri uri) {
+    final String[] proj = {OpenableColumns.SIZE};
+    try (Cursor cursor = contentResolver.query(uri, proj, null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        final int column_index = cursor.getColumnIndex(OpenableColumns.SIZE);
+        if (column_index >= 0 && !cursor.isNull(column_index)) {
+          return cursor.getLong(column_index);
+        }
+      }
+    } catch (RuntimeException e) {
+      // Some providers throw on unknown columns, fall through
+    }
+    final AssetFileDescriptor afd = openAssetFile(contentResolver, uri);
+    if (afd != null) {
+      try {
+        afd.close();
+      } catch (IOException e) {
+        // The length is still valid
+      }
+      return afd.getLength();
+    }
+    return -1;
+  }
 
+  /**
+   * Return at most length bytes of the data at a given Uri, starting at offset.
+   * <p>
+   * When the provider hands out a file descriptor, skipping is a plain seek;
+   * otherwise the stream is read up to the offset and discarded. Reading the
+   * slices in order continues the stream left by the previous one, see ChunkStreams.
+   * Memory use is bounded by length, whatever the size of the content.
+   */
+  public static byte[] getChunkFromURI(
+    final ContentResolver contentResolver,
+    final Uri uri,
+    final long offset,
+    final int length)
+    throws IOException {
+    InputStream inputStream = ChunkStreams.take(uri.toString(), offset);
+    if (inputStream == null) {
+      final AssetFileDescriptor afd = openAssetFile(contentResolver, uri);
+      if (afd != null) {
+        try {
+          inputStream = afd.createInputStream();
+        } catch (IOException | RuntimeException e) {
+          // The stream owns the descriptor only once it is created
+          afd.close();
+          throw e;
+        }
+      }
+      if (inputStream == null) {
+        inputStream = contentResolver.openInputStream(uri);
+      }
+      if (inputStream == null) {
+        throw new IOException("Cannot open " + uri);
+      }
+      final long skipped;
+      try {
+        skipped = ByteStreams.skipFully(inputStream, offset);
+      } catch (IOException | RuntimeException e) {
+        inputStream.close();
+        throw e;
+      }
+      if (skipped < offset) {
+        inputStream.close();
+        return new byte[0];
+      }
+    }
+    try {
+      final byte[] bytes = ByteStreams.readUpTo(inputStream, length);
+      if (length > 0 && bytes.length == length) {
+        // More may follow, keep the stream for the next slice
+        ChunkStreams.keep(uri.toString(), inputStream, offset + length);
+        inputStream = null;
+      }
+      return bytes;
+    } finally {
+      if (inputStream != null) {
+        inputStream.close();
+      }
+    }
+  }
+
+  protected static void decodeQR(JSONObject json, final Activity activity, Uri imageUri) {
+    final ContentResolver contentResolver = activity.getContentResolver();
+    _decodeQR(json, activity, () -> contentResolver.openInputStream(imageUri));
   }
 
-  protected static void _decodeQR(JSONObject json, final Activity activity, Uri imageUri, BitmapResolver bitmapResolver) {
+  /**
+   * Scan an image for QR codes and data matrices, adding them as "qrStrings".
+   * <p>
+   * The image is decoded downsampled to ShareConfig.qrTargetSize first. If no
+   * code is found, the resolution is doubled up to ShareConfig.qrMaxSize, then
+   * overlapping tiles are scanned at twice that resolution (see QrTiling) so
+   * small codes in a large photo are still found, one tile at a time, each
+   * within ShareConfig.qrMaxSize.
+   */
+  protected static void _decodeQR(JSONObject json, final Activity activity, BitmapSampler.StreamOpener opener) {
     Context context = activity.getApplicationContext();
+    BarcodeDetector detector = null;
+    final long start = PipelineStats.start();
+    final ShareTracer.Span span = ShareTracer.span("decodeQR");
     try {
       json.put("processed", true);
-      Bitmap bitmap = bitmapResolver.start(activity.getContentResolver(), imageUri);
-      BarcodeDetector detector =
-        new BarcodeDetector.Builder(context)
-          .setBarcodeFormats(Barcode.DATA_MATRIX | Barcode.QR_CODE)
-          .build();
+      final BitmapFactory.Options bounds = BitmapSampler.readBounds(opener);
+      if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+        Log.d("QR_READ", "Could not read the image bounds");
+        return;
+      }
+      detector = BarcodeDetectorPool.acquire(context);
       if (!detector.isOperational()) {
         Log.d("QR_READ", "Could not set up the detector!");
       }
-      Frame frame = new Frame.Builder().setBitmap(bitmap).build();
-      SparseArray<Barcode> barcodes = detector.detect(frame);
-      Log.d("QR_READ", "-barcodeLength-" + barcodes.size());
-      Barcode thisCode = null;
-      if (barcodes.size() == 0) {
-        return;
-      }
+      final long detectStart = SystemClock.elapsedRealtime();
       JSONArray barcodeArray = new JSONArray();
-      for (int iter = 0; iter < barcodes.size(); iter++) {
-        thisCode = barcodes.valueAt(iter);
-        Log.d("QR_VALUE", "--" + thisCode.rawValue);
-        barcodeArray.put(thisCode.rawValue);
+      int sampleSize = 1;
+      for (int target = ShareConfig.qrTargetSize; barcodeArray.length() == 0; target *= 2) {
+        sampleSize = BitmapSampler.computeSampleSize(bounds.outWidth, bounds.outHeight, target);
+        detect(detector, BitmapSampler.decode(opener, sampleSize), barcodeArray);
+        if (sampleSize == 1 || target * 2 > ShareConfig.qrMaxSize) {
+          break;
+        }
       }
-      ;
-//      try {
-      json.put("qrStrings", barcodeArray);
-//      } catch (JSONException e) {
-//        e.printStackTrace();
-//      }
-
-
-      if (barcodes.size() == 0) {
+      final QrTiling tiling = barcodeArray.length() == 0 && ShareConfig.qrTiles
+        ? QrTiling.plan(bounds.outWidth, bounds.outHeight, sampleSize, ShareConfig.qrMaxSize)
+        : null;
+      if (tiling != null) {
+        final Rect[] tiles = BitmapSampler.tiles(bounds.outWidth, bounds.outHeight, tiling.grid);
+        final BarcodeDetector tileDetector = detector;
+        BitmapSampler.decodeRegions(opener, tiles, tiling.sampleSize,
+          tile -> detect(tileDetector, tile, barcodeArray));
+      }
+      Log.d("QR_READ", "-barcodeLength-" + barcodeArray.length()
+        + " in " + (SystemClock.elapsedRealtime() - detectStart) + "ms");
+      if (barcodeArray.length() == 0) {
         Log.d("QR_VALUE", "--NODATA");
-      } else if (barcodes.size() == 1) {
-        thisCode = barcodes.valueAt(0);
-        Log.d("QR_VALUE", "--" + thisCode.rawValue);
-      } else {
-        for (int iter = 0; iter < barcodes.size(); iter++) {
-          thisCode = barcodes.valueAt(iter);
-          Log.d("QR_VALUE", "--" + thisCode.rawValue);
-        }
+        return;
       }
-
+      json.put("qrStrings", barcodeArray);
     } catch (IOException | JSONException e) {
       e.printStackTrace();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      BarcodeDetectorPool.release(detector);
+      PipelineStats.record(PipelineStats.Stage.QR, start, 0);
+      span.close();
     }
+  }
+
+  /**
+   * Add the values of the codes found in the bitmap, skipping duplicates
+   * found in overlapping tiles. The bitmap is recycled.
+   */
+  private static void detect(BarcodeDetector detector, Bitmap bitmap, JSONArray barcodeArray)
+    throws JSONException {
+    if (bitmap == null) {
+      return;
+    }
+    try {
+      Frame frame = new Frame.Builder().setBitmap(bitmap).build();
+      SparseArray<Barcode> barcodes = detector.detect(frame);
+      for (int iter = 0; iter < barcodes.size(); iter++) {
+        final String rawValue = barcodes.valueAt(iter).rawValue;
+        Log.d("QR_VALUE", "--" + rawValue);
+        if (!contains(barcodeArray, rawValue)) {
+          barcodeArray.put(rawValue);
+        }
+      }
+    } finally {
+      bitmap.recycle();
+    }
+  }
 
+  private static boolean contains(JSONArray array, String value) throws JSONException {
+    for (int i = 0; i < array.length(); i++) {
+      if (array.get(i).equals(value)) {
+        return true;
+      }
+    }
+    return false;
   }
 
 
@@ -410,6 +1029,7 @@ class Serializer {
     final JSONObject json,
     final ContentResolver contentResolver,
     final Uri uri) {
+    final long start = PipelineStats.start();
     try {
       final String[] proj = {MediaStore.Images.Media.DATA};
       final Cursor cursor = contentResolver.query(uri, proj, null, null, null);
@@ -430,6 +1050,8 @@ class Serializer {
       json.put("name", file.getName());
     } catch (JSONException e) {
       e.printStackTrace();
+    } finally {
+      PipelineStats.record(PipelineStats.Stage.PATH_INFO, start, 0);
     }
   }
 }
@@ -0,0 +1,299 @@
+package com.missiveapp.openwith;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Limits on the resources a share may take: items, bytes per item, bytes in
+ * total and wall time.
+ * <p>
+ * The limits come from the plugin preferences (see ShareConfig), and may be
+ * overridden from javascript with set(), which stores them for the next
+ * shares, including the ones processed before the page is loaded.
+ * <p>
+ * One instance is created per share. Item reads go through track(), which
+ * charges the bytes against the budget as they are read. When a limit is
+ * hit, an ExceededException tells why, and the item is downgraded instead of
+ * failing: sent as a reference to load later, or as its previews only.
+ * A limit of 0 means no limit.
+ */
+final class ShareBudget {
+
+  static final String MAX_ITEMS = "maxItems";
+
+  static final String MAX_ITEM_BYTES = "maxItemBytes";
+
+  static final String MAX_TOTAL_BYTES = "maxTotalBytes";
+
+  static final String MAX_TIME = "maxTime";
+
+  static final String DOWNGRADE = "downgrade";
+
+  /**
+   * Downgraded items are sent without their data, with a handle to load it
+   */
+  static final String DOWNGRADE_REFERENCE = "reference";
+
+  /**
+   * Downgraded items are sent with previews and a handle, without their data
+   */
+  static final String DOWNGRADE_THUMBNAIL = "thumbnail";
+
+  /**
+   * Size of the preview of a downgraded item when none are configured
+   */
+  static final int[] DOWNGRADE_THUMBNAIL_SIZES = {512};
+
+  private static final String PREFERENCES = "com.missiveapp.openwith";
+
+  private static final String PREFERENCE_KEY = "budgets";
+
+  /**
+   * The limits set from javascript
+   */
+  private static volatile JSONObject overrides = new JSONObject();
+
+  private static boolean loaded = false;
+
+  /**
+   * A limit of the share was hit.
+   */
+  static final class ExceededException extends IOException {
+
+    /**
+     * "itemBytes", "totalBytes" or "time"
+     */
+    final String reason;
+
+    ExceededException(final String reason) {
+      super("Share budget exceeded: " + reason);
+      this.reason = reason;
+    }
+  }
+
+  private final int maxItems;
+
+  private final long maxItemBytes;
+
+  private final long maxTotalBytes;
+
+  private final long deadline;
+
+  private final AtomicLong total = new AtomicLong();
+
+  /**
+   * A budget for a share starting now, with the current limits.
+   */
+  ShareBudget() {
+    this.maxItems = maxItems();
+    this.maxItemBytes = overrides.optLong(MAX_ITEM_BYTES, ShareConfig.budgetMaxItemBytes);
+    this.maxTotalBytes = overrides.optLong(MAX_TOTAL_BYTES, ShareConfig.budgetMaxTotalBytes);
+    final long maxTime = overrides.optLong(MAX_TIME, ShareConfig.budgetMaxTime);
+    this.deadline = maxTime > 0 ? System.nanoTime() + maxTime * 1000000 : 0;
+  }
+
+  /**
+   * Read the limits set from javascript, once.
+   */
+  static synchronized void load(final Context context) {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    final String stored = preferences(context).getString(PREFERENCE_KEY, null);
+    if (stored == null) {
+      return;
+    }
+    try {
+      overrides = new JSONObject(stored);
+    } catch (JSONException e) {
+      // Back to the preferences
+    }
+  }
+
+  /**
+   * Replace the limits set from javascript, an empty object goes back to the
+   * preferences. They are stored for the next shares.
+   *
+   * @throws JSONException if a limit is unknown or invalid
+   */
+  static synchronized void set(final Context context, final JSONObject budgets) throws JSONException {
+    final JSONObject checked = new JSONObject();
+    final Iterator<String> keys = budgets.keys();
+    while (keys.hasNext()) {
+      final String key = keys.next();
+      if (DOWNGRADE.equals(key)) {
+        final String downgrade = budgets.getString(key);
+        if (!DOWNGRADE_REFERENCE.equals(downgrade) && !DOWNGRADE_THUMBNAIL.equals(downgrade)) {
+          throw new JSONException("Invalid downgrade " + downgrade);
+        }
+        checked.put(key, downgrade);
+      } else if (MAX_ITEMS.equals(key) || MAX_ITEM_BYTES.equals(key)
+        || MAX_TOTAL_BYTES.equals(key) || MAX_TIME.equals(key)) {
+        final long value = budgets.getLong(key);
+        if (value < 0) {
+          throw new JSONException("Invalid " + key + " " + value);
+        }
+        checked.put(key, value);
+      } else {
+        throw new JSONException("Unknown budget " + key);
+      }
+    }
+    overrides = checked;
+    loaded = true;
+    preferences(context).edit().putString(PREFERENCE_KEY, checked.toString()).apply();
+  }
+
+  /**
+   * The limits in use.
+   */
+  static JSONObject current() throws JSONException {
+    final JSONObject current = new JSONObject();
+    current.put(MAX_ITEMS, maxItems());
+    current.put(MAX_ITEM_BYTES, overrides.optLong(MAX_ITEM_BYTES, ShareConfig.budgetMaxItemBytes));
+    current.put(MAX_TOTAL_BYTES, overrides.optLong(MAX_TOTAL_BYTES, ShareConfig.budgetMaxTotalBytes));
+    current.put(MAX_TIME, overrides.optLong(MAX_TIME, ShareConfig.budgetMaxTime));
+    current.put(DOWNGRADE, downgrade());
+    return current;
+  }
+
+  /**
+   * Number of items of a share that are processed, the next ones are left out.
+   */
+  static int maxItems() {
+    final int value = overrides.optInt(MAX_ITEMS, ShareConfig.budgetMaxItems);
+    return value > 0 ? value : Integer.MAX_VALUE;
+  }
+
+  /**
+   * DOWNGRADE_REFERENCE or DOWNGRADE_THUMBNAIL.
+   */
+  static String downgrade() {
+    return overrides.optString(DOWNGRADE, ShareConfig.budgetDowngrade);
+  }
+
+  int getMaxItems() {
+    return maxItems;
+  }
+
+  /**
+   * Throw if the share is out of time.
+   */
+  void checkTime() throws ExceededException {
+    if (deadline != 0 && System.nanoTime() - deadline > 0) {
+      throw new ExceededException("time");
+    }
+  }
+
+  /**
+   * Charge bytes about to be held in memory.
+   */
+  void reserve(final long size) throws ExceededException {
+    checkTime();
+    if (maxItemBytes > 0 && size > maxItemBytes) {
+      throw new ExceededException("itemBytes");
+    }
+    charge(size);
+  }
+
+  /**
+   * Give back bytes that are no longer held.
+   */
+  void release(final long size) {
+    total.addAndGet(-size);
+  }
+
+  /**
+   * Wrap the stream of an item, charging what is read against the budget.
+   * <p>
+   * The declared size, if known, is charged up front, so an item too large
+   * is refused before anything is read or allocated. When a limit is hit
+   * while reading, the bytes charged for the item are given back and the
+   * stream throws an ExceededException.
+   *
+   * @param size the size of the item, or -1 if unknown
+   */
+  InputStream track(final InputStream in, final long size) throws ExceededException {
+    final long declared = Math.max(0, size);
+    reserve(declared);
+    return new Tracked(in, declared);
+  }
+
+  private void charge(final long size) throws ExceededException {
+    if (size <= 0) {
+      return;
+    }
+    while (true) {
+      final long charged = total.get();
+      if (maxTotalBytes > 0 && charged + size > maxTotalBytes) {
+        throw new ExceededException("totalBytes");
+      }
+      if (total.compareAndSet(charged, charged + size)) {
+        return;
+      }
+    }
+  }
+
+  private static SharedPreferences preferences(final Context context) {
+    return context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+  }
+
+  /**
+   * Counts the bytes read from an item.
+   */
+  private final class Tracked extends FilterInputStream {
+
+    private long read = 0;
+
+    private long charged;
+
+    Tracked(final InputStream in, final long charged) {
+      super(in);
+      this.charged = charged;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte[] one = new byte[1];
+      return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      try {
+        checkTime();
+        final int r = super.read(b, off, len);
+        if (r == -1) {
+          // The declared size may have been larger
+          if (charged > read) {
+            release(charged - read);
+            charged = read;
+          }
+          return r;
+        }
+        read += r;
+        if (maxItemBytes > 0 && read > maxItemBytes) {
+          throw new ExceededException("itemBytes");
+        }
+        if (read > charged) {
+          charge(read - charged);
+          charged = read;
+        }
+        return r;
+      } catch (ExceededException e) {
+        release(charged);
+        charged = 0;
+        throw e;
+      }
+    }
+  }
+}
@@ -0,0 +1,275 @@
+package com.missiveapp.openwith;
+
+import android.content.Context;
+
+import java.util.Arrays;
+
+import org.apache.cordova.ConfigXmlParser;
+import org.apache.cordova.CordovaPreferences;
+
+/**
+ * Tunables of the share processing pipeline.
+ * <p>
+ * Defaults can be overridden with preferences in the application config.xml,
+ * for instance: &lt;preference name="OpenWithItemParallelism" value="2" /&gt;
+ */
+final class ShareConfig {
+
+  /**
+   * Number of shared items processed concurrently
+   */
+  static volatile int itemParallelism =
+    Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  /**
+   * Longest side, in pixels, images are first decoded at to look for QR codes
+   */
+  static volatile int qrTargetSize = 1024;
+
+  /**
+   * Longest side, in pixels, the QR scan may go up to when nothing was found
+   */
+  static volatile int qrMaxSize = 2048;
+
+  /**
+   * Whether to scan overlapping tiles when nothing was found on the whole image
+   */
+  static volatile boolean qrTiles = true;
+
+  /**
+   * Number of shared URLs whose content is fetched concurrently
+   */
+  static volatile int fetchPoolSize = 2;
+
+  /**
+   * Timeout, in milliseconds, to connect to a shared URL
+   */
+  static volatile int fetchConnectTimeout = 5000;
+
+  /**
+   * Timeout, in milliseconds, between two reads of a shared URL content
+   */
+  static volatile int fetchReadTimeout = 5000;
+
+  /**
+   * Delay, in milliseconds, after which a share is delivered without its URL content
+   */
+  static volatile int fetchTotalTimeout = 10000;
+
+  /**
+   * At most this many bytes of a shared URL content are downloaded
+   */
+  static volatile int htmlMaxBytes = 64 * 1024;
+
+  /**
+   * How many bytes of the page body are kept after its head
+   */
+  static volatile int htmlExcerptBytes = 0;
+
+  /**
+   * Size, in bytes, of the in-memory cache of fetched pages
+   */
+  static volatile int htmlCacheMemoryBytes = 1024 * 1024;
+
+  /**
+   * Size, in bytes, of the on-disk cache of fetched pages
+   */
+  static volatile long htmlCacheDiskBytes = 8 * 1024 * 1024;
+
+  /**
+   * Delay, in milliseconds, during which a fetched page is served from the cache without revalidation
+   */
+  static volatile long htmlCacheFreshness = 5 * 60 * 1000;
+
+  /**
+   * Whether shared images are sent without their data, with a handle to load it later
+   */
+  static volatile boolean lazyPayload = false;
+
+  /**
+   * Delay, in milliseconds, after which the handle of a lazy item expires
+   */
+  static volatile long handleTtl = 30 * 60 * 1000;
+
+  /**
+   * Whether processed images are cached, so that sharing them again skips the encoding and QR scan
+   */
+  static volatile boolean itemCache = false;
+
+  /**
+   * Size, in bytes, of the on-disk cache of processed images
+   */
+  static volatile long itemCacheDiskBytes = 32 * 1024 * 1024;
+
+  /**
+   * Longest sides, in pixels, of the previews attached to shared images, none by default
+   */
+  static volatile int[] thumbnailSizes = new int[0];
+
+  /**
+   * Format of the previews, "jpeg" or "webp"
+   */
+  static volatile String thumbnailFormat = "jpeg";
+
+  /**
+   * Compression quality of the previews, from 0 to 100
+   */
+  static volatile int thumbnailQuality = 80;
+
+  /**
+   * Whether shares are handed to the app unprocessed and their items sent to javascript one by one
+   */
+  static volatile boolean progressiveDelivery = false;
+
+  /**
+   * Whether data is sent to javascript as ArrayBuffer rather than as Base64 strings
+   */
+  static volatile boolean binaryTransfer = false;
+
+  /**
+   * Number of intents kept while waiting for the javascript handler
+   */
+  static volatile int pendingCapacity = 32;
+
+  /**
+   * What happens to intents arriving while pendingCapacity are waiting
+   */
+  static volatile PendingIntentQueue.Overflow pendingOverflow = PendingIntentQueue.Overflow.DROP_OLDEST;
+
+  /**
+   * Delay, in milliseconds, during which an intent delivered again is dropped, 0 to keep duplicates
+   */
+  static volatile long dedupWindow = 5000;
+
+  /**
+   * Number of recent intents remembered to drop their duplicates
+   */
+  static volatile int dedupCapacity = 64;
+
+  /**
+   * Whether intents are recorded until javascript acknowledges them, to replay them after a crash
+   */
+  static volatile boolean journal = false;
+
+  /**
+   * Number of items of a share that are processed, 0 for no limit, see ShareBudget
+   */
+  static volatile int budgetMaxItems = 5;
+
+  /**
+   * Size above which an item is downgraded instead of read, 0 for no limit
+   */
+  static volatile long budgetMaxItemBytes = 0;
+
+  /**
+   * Bytes read for a share after which its next items are downgraded, 0 for no limit
+   */
+  static volatile long budgetMaxTotalBytes = 0;
+
+  /**
+   * Milliseconds after which the next items of a share are downgraded, 0 for no limit
+   */
+  static volatile long budgetMaxTime = 0;
+
+  /**
+   * How items are downgraded: ShareBudget.DOWNGRADE_REFERENCE or DOWNGRADE_THUMBNAIL
+   */
+  static volatile String budgetDowngrade = ShareBudget.DOWNGRADE_REFERENCE;
+
+  /**
+   * Whether the steps of each share are written as a Chrome trace, see ShareTracer
+   */
+  static volatile boolean trace = false;
+
+  /**
+   * Number of share traces kept
+   */
+  static volatile int traceFiles = 8;
+
+  private static boolean loaded = false;
+
+  private ShareConfig() {
+  }
+
+  /**
+   * Read the preferences given to the plugin.
+   */
+  static synchronized void load(final CordovaPreferences preferences) {
+    if (preferences == null) {
+      return;
+    }
+    itemParallelism = Math.max(1,
+      preferences.getInteger("OpenWithItemParallelism", itemParallelism));
+    qrTargetSize = Math.max(64, preferences.getInteger("OpenWithQrTargetSize", qrTargetSize));
+    qrMaxSize = Math.max(qrTargetSize, preferences.getInteger("OpenWithQrMaxSize", qrMaxSize));
+    qrTiles = preferences.getBoolean("OpenWithQrTiles", qrTiles);
+    fetchPoolSize = Math.max(1, preferences.getInteger("OpenWithFetchPoolSize", fetchPoolSize));
+    fetchConnectTimeout = preferences.getInteger("OpenWithFetchConnectTimeout", fetchConnectTimeout);
+    fetchReadTimeout = preferences.getInteger("OpenWithFetchReadTimeout", fetchReadTimeout);
+    fetchTotalTimeout = preferences.getInteger("OpenWithFetchTotalTimeout", fetchTotalTimeout);
+    htmlMaxBytes = Math.max(1024, preferences.getInteger("OpenWithHtmlMaxBytes", htmlMaxBytes));
+    htmlExcerptBytes = Math.max(0, preferences.getInteger("OpenWithHtmlExcerptBytes", htmlExcerptBytes));
+    lazyPayload = "lazy".equals(preferences.getString("OpenWithPayloadMode", lazyPayload ? "lazy" : "eager"));
+    handleTtl = preferences.getInteger("OpenWithHandleTtl", (int) handleTtl);
+    htmlCacheMemoryBytes = Math.max(1,
+      preferences.getInteger("OpenWithHtmlCacheMemoryBytes", htmlCacheMemoryBytes));
+    htmlCacheDiskBytes = preferences.getInteger("OpenWithHtmlCacheDiskBytes", (int) htmlCacheDiskBytes);
+    htmlCacheFreshness = preferences.getInteger("OpenWithHtmlCacheFreshness", (int) htmlCacheFreshness);
+    itemCache = preferences.getBoolean("OpenWithItemCache", itemCache);
+    itemCacheDiskBytes = preferences.getInteger("OpenWithItemCacheDiskBytes", (int) itemCacheDiskBytes);
+    thumbnailSizes = parseSizes(preferences.getString("OpenWithThumbnailSizes", ""));
+    thumbnailFormat = "webp".equals(preferences.getString("OpenWithThumbnailFormat", thumbnailFormat)) ? "webp" : "jpeg";
+    thumbnailQuality = Math.max(0, Math.min(100,
+      preferences.getInteger("OpenWithThumbnailQuality", thumbnailQuality)));
+    progressiveDelivery = "progressive".equals(
+      preferences.getString("OpenWithDelivery", progressiveDelivery ? "progressive" : "batch"));
+    binaryTransfer = "binary".equals(
+      preferences.getString("OpenWithTransfer", binaryTransfer ? "binary" : "base64"));
+    pendingCapacity = Math.max(1, preferences.getInteger("OpenWithPendingCapacity", pendingCapacity));
+    pendingOverflow = PendingIntentQueue.Overflow.parse(preferences.getString("OpenWithPendingOverflow", "drop-oldest"));
+    dedupWindow = preferences.getInteger("OpenWithDedupWindow", (int) dedupWindow);
+    dedupCapacity = Math.max(1, preferences.getInteger("OpenWithDedupCapacity", dedupCapacity));
+    journal = preferences.getBoolean("OpenWithJournal", journal);
+    budgetMaxItems = Math.max(0, preferences.getInteger("OpenWithMaxItems", budgetMaxItems));
+    budgetMaxItemBytes = Math.max(0, preferences.getInteger("OpenWithMaxItemBytes", (int) budgetMaxItemBytes));
+    budgetMaxTotalBytes = Math.max(0, preferences.getInteger("OpenWithMaxTotalBytes", (int) budgetMaxTotalBytes));
+    budgetMaxTime = Math.max(0, preferences.getInteger("OpenWithMaxShareTime", (int) budgetMaxTime));
+    budgetDowngrade = ShareBudget.DOWNGRADE_THUMBNAIL.equals(preferences.getString("OpenWithDowngrade", budgetDowngrade))
+      ? ShareBudget.DOWNGRADE_THUMBNAIL : ShareBudget.DOWNGRADE_REFERENCE;
+    trace = preferences.getBoolean("OpenWithTrace", trace);
+    traceFiles = Math.max(1, preferences.getInteger("OpenWithTraceFiles", traceFiles));
+    loaded = true;
+  }
+
+  /**
+   * Parse a comma separated list of sizes, ignoring invalid ones.
+   */
+  private static int[] parseSizes(final String value) {
+    final String[] parts = value.split(",");
+    final int[] sizes = new int[parts.length];
+    int count = 0;
+    for (String part : parts) {
+      try {
+        final int size = Integer.parseInt(part.trim());
+        if (size > 0) {
+          sizes[count++] = size;
+        }
+      } catch (NumberFormatException e) {
+        // Ignore
+      }
+    }
+    return Arrays.copyOf(sizes, count);
+  }
+
+  /**
+   * Read the preferences from config.xml, for activities started before the plugin.
+   */
+  static synchronized void load(final Context context) {
+    if (loaded) {
+      return;
+    }
+    final ConfigXmlParser parser = new ConfigXmlParser();
+    parser.parse(context);
+    load(parser.getPreferences());
+  }
+}
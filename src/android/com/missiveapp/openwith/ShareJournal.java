@@ -0,0 +1,351 @@
+package com.missiveapp.openwith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Append-only journal of the intents sent to javascript, so that a share is
+ * not lost when the process dies before the handler received it.
+ * <p>
+ * Each intent is appended (and synced) before it is dispatched, with a
+ * journalId the javascript side acknowledges once a handler got it. Only a
+ * reference to the share is recorded: its items without their data or
+ * handle, and the indexes of the items whose data has to be read again.
+ * Intents not acknowledged are replayed by init() from these records, see
+ * OpenWithPlugin.replay(). The file is one JSON record per line, a torn last
+ * line is ignored. Only the offsets of the pending records are kept in
+ * memory. The file is rewritten with only the pending records once enough
+ * acknowledgements piled up.
+ */
+final class ShareJournal {
+
+  /**
+   * Pending intents kept at most, older ones are given up
+   */
+  private static final int MAX_PENDING = 16;
+
+  /**
+   * Pending intents older than this are given up
+   */
+  private static final long MAX_AGE = 24 * 60 * 60 * 1000;
+
+  /**
+   * Records that no longer matter after which the file is compacted
+   */
+  private static final int COMPACT_THRESHOLD = 32;
+
+  /**
+   * Fields of an item that are not recorded, they are rebuilt on replay
+   */
+  private static final String[] NOT_RECORDED = {"data", "handle", "dataPart"};
+
+  private final File file;
+
+  /**
+   * Offsets in the file of the records of the intents not acknowledged yet, oldest first, once loaded
+   */
+  private LinkedHashMap<String, Long> pending;
+
+  /**
+   * Intents recorded since the page was loaded, they are not replayed to it
+   */
+  private final Set<String> session = new HashSet<>();
+
+  private int obsolete = 0;
+
+  private int count = 0;
+
+  /**
+   * @param filesDir the application files directory, the journal must survive the cache being cleared
+   */
+  ShareJournal(final File filesDir) {
+    this.file = new File(filesDir, "openwith-journal.jsonl");
+  }
+
+  /**
+   * Record an intent before it is dispatched, and set its journalId.
+   *
+   * @return false if it could not be recorded, it is still dispatched
+   */
+  synchronized boolean append(final JSONObject intent) {
+    load();
+    final String id = "j" + System.currentTimeMillis() + "-" + (++count);
+    try {
+      intent.put("journalId", id);
+      final JSONObject record = new JSONObject();
+      record.put("op", "add");
+      record.put("id", id);
+      record.put("at", System.currentTimeMillis());
+      reference(intent, record);
+      pending.put(id, write(record.toString()));
+      session.add(id);
+      while (pending.size() > MAX_PENDING) {
+        final Iterator<String> oldest = pending.keySet().iterator();
+        oldest.next();
+        oldest.remove();
+        obsolete++;
+      }
+      return true;
+    } catch (IOException | JSONException e) {
+      return false;
+    } finally {
+      compactIfNeeded();
+    }
+  }
+
+  /**
+   * Mark an intent as received by javascript.
+   */
+  synchronized void acknowledge(final String id) {
+    load();
+    if (pending.remove(id) == null) {
+      return;
+    }
+    obsolete++;
+    try {
+      final JSONObject record = new JSONObject();
+      record.put("op", "ack");
+      record.put("id", id);
+      write(record.toString());
+      obsolete++;
+    } catch (IOException | JSONException e) {
+      // The intent may be replayed once more
+    }
+    compactIfNeeded();
+  }
+
+  /**
+   * The records of the intents not acknowledged yet, except those already
+   * sent to the current page: {id, at, intent, reload}, reload being the
+   * indexes of the items whose data was sent.
+   */
+  synchronized List<JSONObject> unacknowledged() {
+    load();
+    final long now = System.currentTimeMillis();
+    final List<JSONObject> records = new ArrayList<>();
+    if (pending.isEmpty()) {
+      return records;
+    }
+    try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+      for (Map.Entry<String, Long> entry : pending.entrySet()) {
+        if (session.contains(entry.getKey())) {
+          continue;
+        }
+        final JSONObject record = readRecord(in, entry.getValue());
+        if (record != null && record.optJSONObject("intent") != null && now - record.optLong("at") <= MAX_AGE) {
+          records.add(record);
+          session.add(entry.getKey());
+        }
+      }
+    } catch (IOException e) {
+      // Replay what could be read
+    }
+    return records;
+  }
+
+  /**
+   * Called when the page is reloaded: intents it did not acknowledge are replayed to the next one.
+   */
+  synchronized void forgetSession() {
+    session.clear();
+  }
+
+  /**
+   * Add the intent to a record, without the data of its items.
+   */
+  private static void reference(final JSONObject intent, final JSONObject record) throws JSONException {
+    final JSONObject reference = new JSONObject();
+    final Iterator<String> keys = intent.keys();
+    while (keys.hasNext()) {
+      final String key = keys.next();
+      if (!"items".equals(key)) {
+        reference.put(key, intent.get(key));
+      }
+    }
+    final JSONArray items = intent.optJSONArray("items");
+    if (items != null) {
+      final JSONArray referenced = new JSONArray();
+      final JSONArray reload = new JSONArray();
+      for (int i = 0; i < items.length(); i++) {
+        final JSONObject item = items.optJSONObject(i);
+        if (item == null) {
+          referenced.put(items.get(i));
+          continue;
+        }
+        final JSONObject copy = new JSONObject();
+        final Iterator<String> itemKeys = item.keys();
+        while (itemKeys.hasNext()) {
+          final String key = itemKeys.next();
+          if (!isRecorded(key)) {
+            continue;
+          }
+          copy.put(key, item.get(key));
+        }
+        if (item.has("data") && item.has("uri")) {
+          reload.put(i);
+        }
+        referenced.put(copy);
+      }
+      reference.put("items", referenced);
+      record.put("reload", reload);
+    }
+    record.put("intent", reference);
+  }
+
+  private static boolean isRecorded(final String key) {
+    for (String skipped : NOT_RECORDED) {
+      if (skipped.equals(key)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void load() {
+    if (pending != null) {
+      return;
+    }
+    pending = new LinkedHashMap<>();
+    if (!file.isFile()) {
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+      long offset = 0;
+      String line;
+      while ((line = readLine(in)) != null) {
+        obsolete++;
+        try {
+          final JSONObject record = new JSONObject(line);
+          final String id = record.getString("id");
+          if ("add".equals(record.optString("op"))) {
+            if (now - record.optLong("at") <= MAX_AGE) {
+              pending.put(id, offset);
+              obsolete--;
+            }
+          } else if (pending.remove(id) != null) {
+            obsolete++;
+          }
+        } catch (JSONException e) {
+          // Torn or corrupted record, skip it
+        }
+        offset = in.getFilePointer();
+      }
+    } catch (IOException e) {
+      // Start over with what could be read
+    }
+    while (pending.size() > MAX_PENDING) {
+      final Iterator<String> oldest = pending.keySet().iterator();
+      oldest.next();
+      oldest.remove();
+      obsolete++;
+    }
+    compactIfNeeded();
+  }
+
+  /**
+   * Append a record to the file.
+   *
+   * @return its offset in the file
+   */
+  private long write(final String line) throws IOException {
+    final long offset = file.length();
+    try (FileOutputStream out = new FileOutputStream(file, true)) {
+      out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+      out.getFD().sync();
+    }
+    return offset;
+  }
+
+  private static JSONObject readRecord(final RandomAccessFile in, final long offset) throws IOException {
+    in.seek(offset);
+    final String line = readLine(in);
+    if (line == null) {
+      return null;
+    }
+    try {
+      return new JSONObject(line);
+    } catch (JSONException e) {
+      // Was checked when loaded
+      return null;
+    }
+  }
+
+  /**
+   * Read a line as UTF-8, RandomAccessFile.readLine() only reads Latin-1.
+   */
+  private static String readLine(final RandomAccessFile in) throws IOException {
+    final byte[] buffer = new byte[8192];
+    final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    final long start = in.getFilePointer();
+    int read;
+    while ((read = in.read(buffer)) > 0) {
+      for (int i = 0; i < read; i++) {
+        if (buffer[i] == '\n') {
+          line.write(buffer, 0, i);
+          in.seek(start + line.size() + 1);
+          return new String(line.toByteArray(), StandardCharsets.UTF_8);
+        }
+      }
+      line.write(buffer, 0, read);
+    }
+    return line.size() > 0 ? new String(line.toByteArray(), StandardCharsets.UTF_8) : null;
+  }
+
+  /**
+   * Rewrite the file with the pending records only, through a renamed temporary file.
+   */
+  private void compactIfNeeded() {
+    if (obsolete < COMPACT_THRESHOLD && !(pending.isEmpty() && obsolete > 0)) {
+      return;
+    }
+    if (pending.isEmpty()) {
+      if (!file.exists() || file.delete()) {
+        obsolete = 0;
+      }
+      return;
+    }
+    final File tmp = new File(file.getPath() + ".tmp");
+    final LinkedHashMap<String, Long> offsets = new LinkedHashMap<>();
+    try (RandomAccessFile in = new RandomAccessFile(file, "r");
+         FileOutputStream out = new FileOutputStream(tmp)) {
+      long offset = 0;
+      for (Map.Entry<String, Long> entry : pending.entrySet()) {
+        in.seek(entry.getValue());
+        final String line = readLine(in);
+        if (line == null) {
+          continue;
+        }
+        final byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        offsets.put(entry.getKey(), offset);
+        offset += bytes.length;
+      }
+      out.getFD().sync();
+    } catch (IOException e) {
+      tmp.delete();
+      return;
+    }
+    if (tmp.renameTo(file)) {
+      pending = offsets;
+      obsolete = 0;
+    } else {
+      tmp.delete();
+    }
+  }
+}
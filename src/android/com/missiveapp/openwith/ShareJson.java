@@ -0,0 +1,91 @@
+package com.missiveapp.openwith;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The parts of the JSON sent to javascript that do not depend on Android:
+ * the intent around the items, and the fields describing an item.
+ */
+final class ShareJson {
+
+  private ShareJson() {
+  }
+
+  /**
+   * The intent sent for a share.
+   *
+   * @param action the action of the Android intent
+   * @param text the shared text, may be null
+   */
+  static JSONObject intent(
+    final String action,
+    final boolean exit,
+    final JSONArray items,
+    final String text)
+    throws JSONException {
+    final JSONObject json = new JSONObject();
+    json.put("action", translateAction(action));
+    json.put("exit", exit);
+    json.put("items", items);
+    if (text != null) {
+      json.put("text", text);
+    }
+    return json;
+  }
+
+  /**
+   * The action as javascript knows it: "SEND", "VIEW", or the Android action.
+   */
+  static String translateAction(final String action) {
+    if ("android.intent.action.SEND".equals(action) ||
+      "android.intent.action.SEND_MULTIPLE".equals(action)) {
+      return "SEND";
+    } else if ("android.intent.action.VIEW".equals(action)) {
+      return "VIEW";
+    }
+    return action;
+  }
+
+  /**
+   * Add the type of an image item.
+   */
+  static void describeImage(final JSONObject item, final String type) throws JSONException {
+    item.put("type", type);
+    item.put("uti", "public.image");
+  }
+
+  /**
+   * Add the Base64 data of an item, with the Uri it was read from.
+   */
+  static void attachData(final JSONObject item, final String uri, final String data) throws JSONException {
+    item.put("uri", uri);
+    item.put("data", data);
+  }
+
+  /**
+   * The UTI closest to a MIME type, as on iOS.
+   */
+  static String utiFor(final String type) {
+    if (type == null) {
+      return "public.data";
+    }
+    if (type.startsWith("image/")) {
+      return "public.image";
+    }
+    if (type.startsWith("video/")) {
+      return "public.movie";
+    }
+    if (type.startsWith("audio/")) {
+      return "public.audio";
+    }
+    if ("application/pdf".equals(type)) {
+      return "com.adobe.pdf";
+    }
+    if (type.startsWith("text/")) {
+      return "public.text";
+    }
+    return "public.data";
+  }
+}
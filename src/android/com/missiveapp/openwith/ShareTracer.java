@@ -0,0 +1,315 @@
+package com.missiveapp.openwith;
+
+import android.content.Context;
+import android.os.Process;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Records the steps of a share as a Chrome trace, to be opened in Perfetto
+ * or chrome://tracing.
+ * <p>
+ * Enabled with ShareConfig.trace. Spans are recorded with the thread they
+ * started on, from the first span of a share until the intent is sent to
+ * javascript and the spans still open then are closed, and written as one
+ * file to the cache directory by a background thread. A span that is never
+ * closed (a cancelled fetch for instance) delays the file until the next
+ * share starts. Only the last ShareConfig.traceFiles sessions are kept. When disabled, span()
+ * returns a shared span that records nothing.
+ */
+final class ShareTracer {
+
+  /**
+   * Events kept per session, the next ones are counted but not recorded
+   */
+  private static final int MAX_EVENTS = 10000;
+
+  private static final Span NONE = new Span(null, null, null, 0);
+
+  private static volatile File directory;
+
+  private static final List<JSONObject> events = new ArrayList<>();
+
+  private static final Map<Long, String> threads = new HashMap<>();
+
+  private static long sessionStart = 0;
+
+  private static final AtomicInteger counter = new AtomicInteger();
+
+  /**
+   * Writes the trace files in order, spans may end on the UI thread
+   */
+  private static final ExecutorService writer = Executors.newSingleThreadExecutor((Runnable runnable) -> {
+    final Thread thread = new Thread(runnable, "openwith-trace");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private static int dropped = 0;
+
+  /**
+   * Spans started and not closed yet
+   */
+  private static int open = 0;
+
+  /**
+   * Whether the session is written once its open spans are closed
+   */
+  private static boolean ending = false;
+
+  private ShareTracer() {
+  }
+
+  /**
+   * The events of a finished session, handed to the writer
+   */
+  private static final class Session {
+    final List<JSONObject> events;
+    final Map<Long, String> threads;
+    final long start;
+    final int dropped;
+
+    Session(final List<JSONObject> events, final Map<Long, String> threads, final long start, final int dropped) {
+      this.events = events;
+      this.threads = threads;
+      this.start = start;
+      this.dropped = dropped;
+    }
+  }
+
+  /**
+   * A step of a share, recorded when it is closed, from any thread.
+   */
+  static final class Span implements AutoCloseable {
+
+    private final String name;
+
+    private final String detail;
+
+    private final Thread thread;
+
+    private final long start;
+
+    private boolean closed = false;
+
+    private Span(final String name, final String detail, final Thread thread, final long start) {
+      this.name = name;
+      this.detail = detail;
+      this.thread = thread;
+      this.start = start;
+    }
+
+    @Override
+    public void close() {
+      if (name == null) {
+        return;
+      }
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+      }
+      add(this, System.nanoTime() / 1000);
+    }
+  }
+
+  /**
+   * Tell where traces go, before the first span.
+   */
+  static synchronized void setUp(final Context context) {
+    if (directory == null) {
+      directory = new File(context.getApplicationContext().getCacheDir(), "openwith-traces");
+    }
+  }
+
+  /**
+   * Start a span, closing it records it.
+   */
+  static Span span(final String name) {
+    return span(name, null);
+  }
+
+  /**
+   * Start a span.
+   *
+   * @param detail shown in the arguments of the span, may be null
+   */
+  static Span span(final String name, final String detail) {
+    if (!ShareConfig.trace) {
+      return NONE;
+    }
+    Session previous = null;
+    synchronized (ShareTracer.class) {
+      if (ending) {
+        // A span of the previous share was never closed, a new share starts
+        previous = takeSession();
+        open = 0;
+      }
+      open++;
+    }
+    write(previous);
+    return new Span(name, detail, Thread.currentThread(), System.nanoTime() / 1000);
+  }
+
+  private static void add(final Span span, final long end) {
+    final Session trace;
+    synchronized (ShareTracer.class) {
+      open = Math.max(0, open - 1);
+      record(span, end);
+      trace = ending && open == 0 ? takeSession() : null;
+    }
+    write(trace);
+  }
+
+  private static void record(final Span span, final long end) {
+    if (events.isEmpty()) {
+      sessionStart = System.currentTimeMillis();
+    }
+    if (events.size() >= MAX_EVENTS) {
+      dropped++;
+      return;
+    }
+    threads.put(span.thread.getId(), span.thread.getName());
+    try {
+      final JSONObject event = new JSONObject();
+      event.put("name", span.name);
+      event.put("cat", "openwith");
+      event.put("ph", "X");
+      event.put("ts", span.start);
+      event.put("dur", end - span.start);
+      event.put("pid", Process.myPid());
+      event.put("tid", span.thread.getId());
+      if (span.detail != null) {
+        final JSONObject args = new JSONObject();
+        args.put("detail", span.detail);
+        event.put("args", args);
+      }
+      events.add(event);
+    } catch (JSONException e) {
+      // Skip the event
+    }
+  }
+
+  /**
+   * End the session: it is written to a new trace file once its open spans are closed.
+   */
+  static void endSession() {
+    if (!ShareConfig.trace) {
+      return;
+    }
+    final Session trace;
+    synchronized (ShareTracer.class) {
+      ending = true;
+      trace = open == 0 ? takeSession() : null;
+    }
+    write(trace);
+  }
+
+  /**
+   * Return the events of the session and start a new one, null if there is nothing to write.
+   */
+  private static Session takeSession() {
+    ending = false;
+    final Session session = events.isEmpty() || directory == null ? null
+      : new Session(new ArrayList<>(events), new HashMap<>(threads), sessionStart, dropped);
+    events.clear();
+    threads.clear();
+    dropped = 0;
+    return session;
+  }
+
+  private static JSONObject toJson(final Session session) throws JSONException {
+    final JSONArray traceEvents = new JSONArray();
+    final int pid = Process.myPid();
+    for (Map.Entry<Long, String> thread : session.threads.entrySet()) {
+      final JSONObject args = new JSONObject();
+      args.put("name", thread.getValue());
+      final JSONObject metadata = new JSONObject();
+      metadata.put("name", "thread_name");
+      metadata.put("ph", "M");
+      metadata.put("pid", pid);
+      metadata.put("tid", thread.getKey());
+      metadata.put("args", args);
+      traceEvents.put(metadata);
+    }
+    for (JSONObject event : session.events) {
+      traceEvents.put(event);
+    }
+    final JSONObject otherData = new JSONObject();
+    otherData.put("startedAt", session.start);
+    otherData.put("droppedEvents", session.dropped);
+    final JSONObject json = new JSONObject();
+    json.put("traceEvents", traceEvents);
+    json.put("displayTimeUnit", "ms");
+    json.put("otherData", otherData);
+    return json;
+  }
+
+  /**
+   * Write the trace of a session to a new file in the background, nothing if it is null.
+   */
+  private static void write(final Session session) {
+    if (session == null) {
+      return;
+    }
+    writer.execute(() -> {
+      try {
+        writeFile(toJson(session).toString());
+      } catch (JSONException e) {
+        // Skip the trace
+      }
+    });
+  }
+
+  /**
+   * Write a trace to a new file, then delete the oldest ones beyond ShareConfig.traceFiles.
+   */
+  private static void writeFile(final String trace) {
+    final File dir = directory;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      return;
+    }
+    final File file = new File(dir, "share-" + System.currentTimeMillis() + "-" + counter.incrementAndGet() + ".json");
+    final File tmp = new File(dir, file.getName() + ".tmp");
+    try (OutputStream out = new FileOutputStream(tmp)) {
+      out.write(trace.getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      tmp.delete();
+      return;
+    }
+    if (!tmp.renameTo(file)) {
+      tmp.delete();
+      return;
+    }
+    final File[] files = dir.listFiles();
+    if (files == null || files.length <= ShareConfig.traceFiles) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(final File a, final File b) {
+        return Long.compare(a.lastModified(), b.lastModified());
+      }
+    });
+    for (int i = 0; i < files.length - ShareConfig.traceFiles; i++) {
+      files[i].delete();
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package com.missiveapp.openwith;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.os.Build;
+import android.util.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Small previews of shared images.
+ * <p>
+ * The image is decoded once, subsampled close to the largest requested size,
+ * and each smaller preview is scaled down from the previous one, so the cost
+ * depends on the preview sizes rather than on the size of the original photo.
+ * The EXIF orientation of camera photos is applied, so previews are upright.
+ */
+final class Thumbnails {
+
+  private Thumbnails() {
+  }
+
+  /**
+   * Create a preview of the image for each of ShareConfig.thumbnailSizes, smallest first.
+   * Images are never scaled up, sizes larger than the image give a single preview at its size.
+   *
+   * @param opener opens the image
+   * @param width  width of the image
+   * @param height height of the image
+   * @return [{size, width, height, type, data}], data being the Base64 of the compressed preview
+   */
+  static JSONArray create(final BitmapSampler.StreamOpener opener, final int width, final int height)
+    throws IOException, JSONException {
+    return create(opener, width, height, ShareConfig.thumbnailSizes);
+  }
+
+  /**
+   * Create a preview of the image for each of the given sizes, smallest first.
+   */
+  static JSONArray create(
+    final BitmapSampler.StreamOpener opener, final int width, final int height, final int[] sizes)
+    throws IOException, JSONException {
+    final JSONArray thumbnails = new JSONArray();
+    if (sizes.length == 0 || width <= 0 || height <= 0) {
+      return thumbnails;
+    }
+    final int longest = Math.max(width, height);
+    final int[] descending = sizes.clone();
+    Arrays.sort(descending);
+    reverse(descending);
+    Bitmap source = BitmapSampler.decode(opener,
+      BitmapSampler.computeSampleSize(width, height, Math.min(descending[0], longest)));
+    if (source == null) {
+      return thumbnails;
+    }
+    source = orient(source, readOrientation(opener));
+    final JSONObject[] previews = new JSONObject[descending.length];
+    int count = 0;
+    int previous = -1;
+    try {
+      for (int size : descending) {
+        final int target = Math.min(size, longest);
+        if (target == previous) {
+          continue;
+        }
+        previous = target;
+        final Bitmap preview = scale(source, target);
+        if (preview != source) {
+          source.recycle();
+          source = preview;
+        }
+        previews[count++] = toJson(source, target);
+      }
+    } finally {
+      source.recycle();
+    }
+    for (int i = count - 1; i >= 0; i--) {
+      thumbnails.put(previews[i]);
+    }
+    return thumbnails;
+  }
+
+  /**
+   * Scale a bitmap so that its longest side is at most target.
+   */
+  private static Bitmap scale(final Bitmap bitmap, final int target) {
+    final int longest = Math.max(bitmap.getWidth(), bitmap.getHeight());
+    if (longest <= target) {
+      return bitmap;
+    }
+    final float ratio = (float) target / longest;
+    return Bitmap.createScaledBitmap(bitmap,
+      Math.max(1, Math.round(bitmap.getWidth() * ratio)),
+      Math.max(1, Math.round(bitmap.getHeight() * ratio)),
+      true);
+  }
+
+  /**
+   * The EXIF orientation of the image, read from its header only.
+   */
+  private static int readOrientation(final BitmapSampler.StreamOpener opener) {
+    try (InputStream in = opener.open()) {
+      if (in == null) {
+        return ExifInterface.ORIENTATION_NORMAL;
+      }
+      return new ExifInterface(in).getAttributeInt(
+        ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+    } catch (IOException | RuntimeException e) {
+      // Not an image with EXIF data
+      return ExifInterface.ORIENTATION_NORMAL;
+    }
+  }
+
+  /**
+   * Rotate or mirror a bitmap as told by an EXIF orientation. The bitmap is
+   * recycled if a new one is returned.
+   */
+  private static Bitmap orient(final Bitmap bitmap, final int orientation) {
+    final Matrix matrix = new Matrix();
+    switch (orientation) {
+      case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+        matrix.postScale(-1, 1);
+        break;
+      case ExifInterface.ORIENTATION_ROTATE_180:
+        matrix.postRotate(180);
+        break;
+      case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+        matrix.postScale(1, -1);
+        break;
+      case ExifInterface.ORIENTATION_TRANSPOSE:
+        matrix.postRotate(90);
+        matrix.postScale(-1, 1);
+        break;
+      case ExifInterface.ORIENTATION_ROTATE_90:
+        matrix.postRotate(90);
+        break;
+      case ExifInterface.ORIENTATION_TRANSVERSE:
+        matrix.postRotate(270);
+        matrix.postScale(-1, 1);
+        break;
+      case ExifInterface.ORIENTATION_ROTATE_270:
+        matrix.postRotate(270);
+        break;
+      default:
+        return bitmap;
+    }
+    final Bitmap oriented = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+    if (oriented != bitmap) {
+      bitmap.recycle();
+    }
+    return oriented;
+  }
+
+  private static JSONObject toJson(final Bitmap bitmap, final int size) throws JSONException {
+    final boolean webp = "webp".equals(ShareConfig.thumbnailFormat);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+    bitmap.compress(webp ? webpFormat() : Bitmap.CompressFormat.JPEG, ShareConfig.thumbnailQuality, out);
+    final JSONObject json = new JSONObject();
+    json.put("size", size);
+    json.put("width", bitmap.getWidth());
+    json.put("height", bitmap.getHeight());
+    json.put("type", webp ? "image/webp" : "image/jpeg");
+    json.put("data", Base64.encodeToString(out.toByteArray(), Base64.NO_WRAP));
+    return json;
+  }
+
+  /**
+   * WEBP is deprecated since API 30, where its lossy and lossless variants are named.
+   */
+  @SuppressWarnings("deprecation")
+  private static Bitmap.CompressFormat webpFormat() {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+      return Bitmap.CompressFormat.WEBP_LOSSY;
+    }
+    return Bitmap.CompressFormat.WEBP;
+  }
+
+  private static void reverse(final int[] values) {
+    for (int i = 0, j = values.length - 1; i < j; i++, j--) {
+      final int value = values[i];
+      values[i] = values[j];
+      values[j] = value;
+    }
+  }
+}
@@ -33,12 +33,21 @@ function initOpenwithPlugin(root) {
     // list of registered handlers
     let handlers;
 
+    // list of registered progress handlers, see addProgressHandler()
+    let progressHandlers;
+
+    // data of the items of progressive deliveries in binary mode, by session then index
+    let sessionData;
+
     // list of intents sent to this app
     //
     // it's never cleaned up, so that newly registered handlers (especially those registered a bit too late)
     // will still receive the list of intents.
     let intents;
 
+    // journal ids of the intents acknowledged to the native side
+    let acknowledged;
+
     // the logger function (defaults to console.log)
     let logger;
 
@@ -83,7 +92,10 @@ function initOpenwithPlugin(root) {
         log(DEBUG, 'reset');
         verbosity = openwith.INFO;
         handlers = [];
+        progressHandlers = [];
+        sessionData = {};
         intents = [];
+        acknowledged = {};
         logger = console.log;
         cordova = root.cordova;
         initCalled = false;
@@ -145,19 +157,41 @@ function initOpenwithPlugin(root) {
         handlers.push(callback);
         intents.forEach((intent) => {
             callback(intent);
+            acknowledge(intent);
         });
     };
 
+    // registers a handler for the events of shares delivered progressively
+    //
+    // with the OpenWithDelivery preference set to "progressive", the handler receives
+    // a "session" event, an "item" event for each item as soon as it is ready, then a
+    // "complete" event. Handlers added with addHandler() still receive the whole intent.
+    openwith.addProgressHandler = function(callback) {
+        log(DEBUG, 'addProgressHandler()');
+        if (typeof callback !== 'function') {
+            throw new Error('invalid handler function');
+        }
+        if (progressHandlers.indexOf(callback) >= 0) {
+            throw new Error('handler already defined');
+        }
+        progressHandlers.push(callback);
+    };
+
     openwith.numHandlers = function() {
         log(DEBUG, 'numHandler()');
         return handlers.length;
     };
 
     openwith.load = function(dataDescriptor, successCallback, errorCallback) {
-        let loadSuccess = function(base64) {
-            dataDescriptor.base64 = base64;
+        // in binary mode (OpenWithTransfer preference), data comes as an ArrayBuffer
+        let loadSuccess = function(data) {
+            if (data instanceof ArrayBuffer) {
+                dataDescriptor.data = data;
+            } else {
+                dataDescriptor.base64 = data;
+            }
             if (successCallback) {
-                successCallback(base64, dataDescriptor);
+                successCallback(data, dataDescriptor);
             }
         };
         let loadError = function(err) {
@@ -167,25 +201,158 @@ function initOpenwithPlugin(root) {
         };
         if (dataDescriptor.base64) {
             loadSuccess(dataDescriptor.base64);
+        } else if (dataDescriptor.data instanceof ArrayBuffer) {
+            loadSuccess(dataDescriptor.data);
         } else {
             cordova.exec(loadSuccess, loadError, PLUGIN_NAME, 'load', [dataDescriptor]);
         }
     };
 
+    // forget the handle of an item loaded lazily, once its data is not needed anymore
+    openwith.release = function(dataDescriptor) {
+        log(DEBUG, 'release()');
+        if (dataDescriptor.handle) {
+            cordova.exec(null, null, PLUGIN_NAME, 'release', [dataDescriptor]);
+        }
+    };
+
+    // retrieve the size of an item without loading its data
+    openwith.stat = function(dataDescriptor, successCallback, errorCallback) {
+        log(DEBUG, 'stat()');
+        let statSuccess = function(stat) {
+            if (successCallback) {
+                successCallback(stat, dataDescriptor);
+            }
+        };
+        let statError = function(err) {
+            if (errorCallback) {
+                errorCallback(err, dataDescriptor);
+            }
+        };
+        cordova.exec(statSuccess, statError, PLUGIN_NAME, 'stat', [dataDescriptor]);
+    };
+
+    // load a slice of an item's data, as a base64 string
+    //
+    // length must not exceed stat().maxChunkSize, larger lengths are refused with an
+    // error. A short (or empty) result means the end of the data has been reached.
+    openwith.loadChunk = function(dataDescriptor, offset, length, successCallback, errorCallback) {
+        log(DEBUG, `loadChunk(${offset}, ${length})`);
+        if (typeof offset !== 'number' || offset < 0) {
+            throw new Error('invalid offset');
+        }
+        if (typeof length !== 'number' || length < 0) {
+            throw new Error('invalid length');
+        }
+        let loadSuccess = function(base64) {
+            if (successCallback) {
+                successCallback(base64, dataDescriptor);
+            }
+        };
+        let loadError = function(err) {
+            if (errorCallback) {
+                errorCallback(err, dataDescriptor);
+            }
+        };
+        cordova.exec(loadSuccess, loadError, PLUGIN_NAME, 'loadChunk', [dataDescriptor, offset, length]);
+    };
+
+    // retrieve the counters of the native share processing
+    openwith.getStats = function(successCallback, errorCallback) {
+        log(DEBUG, 'getStats()');
+        cordova.exec(successCallback, errorCallback, PLUGIN_NAME, 'getStats', []);
+    };
+
+    // limit the resources a share may take
+    openwith.setBudgets = function(budgets, successCallback, errorCallback) {
+        log(DEBUG, 'setBudgets()');
+        if (!budgets || typeof budgets !== 'object') {
+            throw new Error('invalid budgets');
+        }
+        cordova.exec(successCallback, errorCallback, PLUGIN_NAME, 'setBudgets', [budgets]);
+    };
+
+    // start the counters of the native share processing over
+    openwith.resetStats = function(successCallback, errorCallback) {
+        log(DEBUG, 'resetStats()');
+        cordova.exec(successCallback, errorCallback, PLUGIN_NAME, 'resetStats', []);
+    };
+
     openwith.exit = function() {
         log(DEBUG, 'exit()');
         cordova.exec(null, null, PLUGIN_NAME, 'exit', []);
     };
 
+    // tell the native side a handler got the intent, so that it is not replayed on next start
+    let acknowledge = function(intent) {
+        if (intent && intent.journalId && !acknowledged[intent.journalId]) {
+            acknowledged[intent.journalId] = true;
+            cordova.exec(null, null, PLUGIN_NAME, 'ack', [intent.journalId]);
+        }
+    };
+
     let onNewIntent = function(intent) {
         log(DEBUG, `onNewIntent(${intent.action})`);
         // process the new intent
         handlers.forEach((handler) => {
             handler(intent);
         });
+        if (handlers.length > 0) {
+            acknowledge(intent);
+        }
         intents.push(intent);
     };
 
+    // in binary mode, the data of items comes as ArrayBuffer arguments following the message,
+    // items tell which one is theirs with dataPart
+    let attachData = function(item, parts) {
+        if (item && item.dataPart !== undefined) {
+            item.data = parts[item.dataPart - 1];
+            delete item.dataPart;
+        }
+    };
+
+    // the items of a completed progressive delivery get the data sent with their item events
+    let attachSessionData = function(message) {
+        let buffers = sessionData[message.session];
+        delete sessionData[message.session];
+        if (!buffers || !message.intent || !message.intent.items) {
+            return;
+        }
+        message.intent.items.forEach((item, index) => {
+            if (item.data === undefined && buffers[index] !== undefined) {
+                item.data = buffers[index];
+            }
+        });
+    };
+
+    // messages of the native handler are either intents, or events of a progressive delivery
+    let onNativeMessage = function(message, ...parts) {
+        if (message && message.event) {
+            log(DEBUG, `onNativeMessage(${message.event})`);
+            if (message.event === 'item') {
+                attachData(message.item, parts);
+                if (message.item && message.item.data instanceof ArrayBuffer) {
+                    sessionData[message.session] = sessionData[message.session] || [];
+                    sessionData[message.session][message.index] = message.item.data;
+                }
+            } else if (message.event === 'complete') {
+                attachSessionData(message);
+            }
+            progressHandlers.forEach((handler) => {
+                handler(message);
+            });
+            if (message.event === 'complete') {
+                onNewIntent(message.intent);
+            }
+            return;
+        }
+        if (message && message.items) {
+            message.items.forEach((item) => attachData(item, parts));
+        }
+        onNewIntent(message);
+    };
+
     // Initialize the native side at startup
     openwith.init = function(successCallback, errorCallback) {
         log(DEBUG, 'init()');
@@ -210,13 +377,16 @@ function initOpenwithPlugin(root) {
             log(DEBUG, 'initError()');
             if (errorCallback) errorCallback();
         };
+        // native messages come in batches of "level:message" strings
         let nativeLogger = function(data) {
-            let split = data.split(':');
-            log(+split[0], `[native] ${split.slice(1).join(':')}`);
+            (Array.isArray(data) ? data : [data]).forEach((entry) => {
+                let split = entry.split(':');
+                log(+split[0], `[native] ${split.slice(1).join(':')}`);
+            });
         };
 
         cordova.exec(nativeLogger, null, PLUGIN_NAME, 'setLogger', []);
-        cordova.exec(onNewIntent, null, PLUGIN_NAME, 'setHandler', []);
+        cordova.exec(onNativeMessage, null, PLUGIN_NAME, 'setHandler', []);
         cordova.exec(initSuccess, initError, PLUGIN_NAME, 'init', []);
     };
 
@@ -90,6 +90,76 @@ describe('openwith', () => {
         });
     });
 
+    describe('.getStats()', () => {
+        it('is a function', () => expect(openwith.getStats).to.be.a('function'));
+        it('asks the native side for the stats', () => {
+            let stats;
+            openwith.getStats((value) => {
+                stats = value;
+            });
+            cordovaExecCallTo('getStats').successCallback({dedup: {hits: 1, misses: 2, size: 2}});
+            expect(stats.dedup.hits).to.equal(1);
+        });
+        it('passes the stage stats through', () => {
+            let stats;
+            openwith.getStats((value) => {
+                stats = value;
+            });
+            cordovaExecCallTo('getStats').successCallback({stages: {read: {count: 2, bytes: 2048, p50: 0.5}}});
+            expect(stats.stages.read.count).to.equal(2);
+            expect(stats.stages.read.p50).to.equal(0.5);
+        });
+    });
+
+    describe('.setBudgets()', () => {
+        it('is a function', () => expect(openwith.setBudgets).to.be.a('function'));
+        it('accepts only an object as argument', () => {
+            expect(openwith.setBudgets).withArgs({}).to.not.throwError();
+            expect(openwith.setBudgets).withArgs(5).to.throwError();
+            expect(openwith.setBudgets).withArgs(null).to.throwError();
+        });
+        it('sends the budgets to the native side', () => {
+            let budgets;
+            openwith.setBudgets({maxItems: 3}, (value) => {
+                budgets = value;
+            });
+            expect(cordovaExecCallTo('setBudgets').args[0].maxItems).to.equal(3);
+            cordovaExecCallTo('setBudgets').successCallback({maxItems: 3, downgrade: 'reference'});
+            expect(budgets.downgrade).to.equal('reference');
+        });
+    });
+
+    describe('.resetStats()', () => {
+        it('is a function', () => expect(openwith.resetStats).to.be.a('function'));
+        it('asks the native side to reset the stats', () => {
+            let done = false;
+            openwith.resetStats(() => {
+                done = true;
+            });
+            cordovaExecCallTo('resetStats').successCallback();
+            expect(done).to.equal(true);
+        });
+    });
+
+    describe('native logger', () => {
+        it('logs each message of a batch', () => {
+            let logs = [];
+            openwith.init();
+            openwith.setLogger((message) => logs.push(message));
+            cordovaExecCallTo('setLogger').successCallback(['20:first', '30:second: with colon']);
+            expect(logs.length).to.equal(2);
+            expect(logs[0]).to.contain('[native] first');
+            expect(logs[1]).to.contain('[native] second: with colon');
+        });
+        it('skips messages below the verbosity level', () => {
+            let logs = [];
+            openwith.init();
+            openwith.setLogger((message) => logs.push(message));
+            cordovaExecCallTo('setLogger').successCallback(['0:debug', '30:error']);
+            expect(logs.length).to.equal(1);
+        });
+    });
+
     describe('.numHandlers', () => {
         it('is a function', () => expect(openwith.numHandlers).to.be.a('function'));
         it('returns the number of handlers', () => {
@@ -119,6 +189,83 @@ describe('openwith', () => {
         });
     });
 
+    describe('.addProgressHandler', () => {
+        it('is a function', () => expect(openwith.addProgressHandler).to.be.a('function'));
+        it('accepts only a function as argument', () => {
+            expect(openwith.addProgressHandler).withArgs(1).to.throwError();
+            expect(openwith.addProgressHandler).withArgs(() => {}).to.not.throwError();
+        });
+        it('refuses to add the same handler more than once', () => {
+            let handler = () => {};
+            openwith.addProgressHandler(handler);
+            expect(openwith.addProgressHandler).withArgs(handler).to.throwError();
+        });
+    });
+
+    describe('.release()', () => {
+        it('is a function', () => expect(openwith.release).to.be.a('function'));
+        it('releases items with a handle', () => {
+            let descriptor = {handle: 'h1'};
+            openwith.release(descriptor);
+            expect(cordovaExecCallTo('release').args).to.eql([descriptor]);
+        });
+        it('ignores items without a handle', () => {
+            openwith.release({uri: 'content://test/1'});
+            expect(cordovaExecCallTo('release')).to.not.be.ok();
+        });
+    });
+
+    describe('.load()', () => {
+        it('keeps the base64 data of the item', () => {
+            let descriptor = {uri: 'content://1'};
+            openwith.load(descriptor);
+            cordovaExecCallTo('load').successCallback('AAAA');
+            expect(descriptor.base64).to.equal('AAAA');
+        });
+        it('keeps the binary data of the item', () => {
+            let descriptor = {uri: 'content://1'};
+            let data = new ArrayBuffer(3);
+            openwith.load(descriptor);
+            cordovaExecCallTo('load').successCallback(data);
+            expect(descriptor.data).to.equal(data);
+            expect(descriptor.base64).to.equal(undefined);
+        });
+    });
+
+    describe('.stat()', () => {
+        it('is a function', () => expect(openwith.stat).to.be.a('function'));
+        it('asks the native side for the item size', () => {
+            let descriptor = {uri: 'content://test/1'};
+            openwith.stat(descriptor);
+            expect(cordovaExecCallTo('stat')).to.be.ok();
+            expect(cordovaExecCallTo('stat').args).to.eql([descriptor]);
+        });
+        it('passes the data descriptor to the callback', () => {
+            let descriptor = {uri: 'content://test/1'};
+            let received;
+            openwith.stat(descriptor, (stat, d) => {
+                received = [stat, d];
+            });
+            cordovaExecCallTo('stat').successCallback({size: 42});
+            expect(received).to.eql([{size: 42}, descriptor]);
+        });
+    });
+
+    describe('.loadChunk()', () => {
+        it('is a function', () => expect(openwith.loadChunk).to.be.a('function'));
+        it('rejects bad offsets and lengths', () => {
+            let descriptor = {uri: 'content://test/1'};
+            expect(openwith.loadChunk).withArgs(descriptor, -1, 10).to.throwError();
+            expect(openwith.loadChunk).withArgs(descriptor, 0, 'a').to.throwError();
+            expect(openwith.loadChunk).withArgs(descriptor, 0, 10).to.not.throwError();
+        });
+        it('asks the native side for a slice of the data', () => {
+            let descriptor = {uri: 'content://test/1'};
+            openwith.loadChunk(descriptor, 1024, 512);
+            expect(cordovaExecCallTo('loadChunk').args).to.eql([descriptor, 1024, 512]);
+        });
+    });
+
     describe('new file received', () => {
         let onNewFile;
         let myHandlersArgs;
@@ -166,6 +313,72 @@ describe('openwith', () => {
             });
         });
 
+        it('sends progressive events to the progress handlers only', () => {
+            let events = [];
+            openwith.addProgressHandler((event) => events.push(event));
+            myHandlers.forEach(openwith.addHandler);
+            let session = {event: 'session', session: 1, count: 1};
+            let item = {event: 'item', session: 1, index: 0, item: {test: 4}};
+            onNewFile(session);
+            onNewFile(item);
+            expect(events).to.eql([session, item]);
+            myHandlersArgs.forEach((args) => {
+                expect(args).to.not.be.ok();
+            });
+        });
+
+        it('sends error events to the progress handlers only', () => {
+            let events = [];
+            openwith.addProgressHandler((event) => events.push(event));
+            myHandlers.forEach(openwith.addHandler);
+            let error = {event: 'error', error: 'pending intent queue full', rejected: 2};
+            onNewFile(error);
+            expect(events).to.eql([error]);
+            myHandlersArgs.forEach((args) => {
+                expect(args).to.not.be.ok();
+            });
+        });
+
+        it('sends the intent of a completed progressive delivery to all handlers', () => {
+            let events = [];
+            openwith.addProgressHandler((event) => events.push(event));
+            myHandlers.forEach(openwith.addHandler);
+            let intent = {items: [{test: 5}]};
+            let complete = {event: 'complete', session: 1, intent: intent};
+            onNewFile(complete);
+            expect(events).to.eql([complete]);
+            myHandlersArgs.forEach((args) => {
+                expect(args[0]).to.equal(intent);
+            });
+        });
+
+        it('attaches the binary parts to the items of an intent', () => {
+            myHandlers.forEach(openwith.addHandler);
+            let data = new ArrayBuffer(4);
+            onNewFile({items: [{uti: 'public.image', dataPart: 1}, {uti: 'public.url'}]}, data);
+            let items = myHandlersArgs[0][0].items;
+            expect(items[0].data).to.equal(data);
+            expect(items[0].dataPart).to.equal(undefined);
+            expect(items[1].data).to.equal(undefined);
+        });
+
+        it('attaches the binary parts of item events to the completed intent', () => {
+            myHandlers.forEach(openwith.addHandler);
+            let data = new ArrayBuffer(4);
+            onNewFile({event: 'item', session: 2, index: 0, item: {dataPart: 1}}, data);
+            onNewFile({event: 'complete', session: 2, intent: {items: [{}]}});
+            expect(myHandlersArgs[0][0].items[0].data).to.equal(data);
+        });
+
+        it('acknowledges journaled intents once a handler got them', () => {
+            onNewFile({journalId: 'j1'});
+            expect(cordovaExecCallTo('ack')).to.not.be.ok();
+            myHandlers.forEach(openwith.addHandler);
+            expect(cordovaExecCallTo('ack').args).to.eql(['j1']);
+            onNewFile({journalId: 'j2'});
+            expect(cordovaExecCallTo('ack').args).to.eql(['j2']);
+        });
+
         it('triggers for handlers added after the new file is received', () => {
             let newFile = {test: 3};
             onNewFile(newFile);